@@ -8,11 +8,13 @@ import com.example.demo.payload.response.video.UploadSessionResponse;
 import com.example.demo.repository.UploadSessionRepository;
 import com.example.demo.security.UserDetailsImpl;
 import com.example.demo.service.LoadBalancingService;
+import com.example.demo.service.UploadProgressService;
 import com.example.demo.service.UploadSessionService;
 import com.example.demo.service.VideoService;
 import jakarta.validation.Valid;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
@@ -28,6 +30,9 @@ public class UploadSessionController {
     @Autowired
     private LoadBalancingService loadBalancingService;
 
+    @Autowired
+    private UploadProgressService uploadProgressService;
+
     @Autowired
     private com.example.demo.service.ActivityLogService activityLogService;
 
@@ -70,6 +75,16 @@ public class UploadSessionController {
         return ResponseEntity.ok(session);
     }
 
+    @GetMapping(value = "/sessions/{sessionId}/progress", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<?> streamTranscodeProgress(@PathVariable String sessionId,
+                                                     @AuthenticationPrincipal UserDetailsImpl userDetails) {
+        UploadSession session = uploadSessionService.getUploadSession(sessionId);
+        if (session == null || !session.getUser_id().equals(userDetails.getId())) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(uploadProgressService.subscribe(sessionId));
+    }
+
 //    @PostMapping("/{sessionId}/complete")
 //    public ResponseEntity<?> completeUpload(
 //            @AuthenticationPrincipal UserDetailsImpl userDetails,
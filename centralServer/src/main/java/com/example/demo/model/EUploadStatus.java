@@ -1,6 +1,6 @@
 package com.example.demo.model;
 
 public enum EUploadStatus {
-    UPLOADING, COMPLETED
+    UPLOADING, FINALIZING, COMPLETED, FAILED
 
     }
@@ -0,0 +1,22 @@
+package com.example.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One planned rendition of a video and the rate control it is encoded with.
+ * Rates are in kbit/s, 0 means uncapped CRF.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class LadderRung {
+    private int height;
+    // expected average bitrate at the encoder's CRF
+    private int targetBitrate;
+    private int maxrate;
+    private int bufsize;
+}
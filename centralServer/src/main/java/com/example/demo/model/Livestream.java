@@ -28,6 +28,7 @@ public class Livestream {
     private EVideoPrivacy privacy;
     // DVR recording path
     private String dvrPath;
+    private MediaInfo mediaInfo;
 
     @CreatedDate
     private Instant uploadedDate;
@@ -0,0 +1,35 @@
+package com.example.demo.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Live progress of one transcode job, written by the sub server that runs it and streamed to the uploader from here.
+ */
+@Data
+@Document(collection = "transcode_progress")
+public class TranscodeProgress {
+    @Id
+    private String id;
+    @Indexed
+    private String sessionId;
+    private String videoId;
+    // "ladder", a single height, or "part-N" for chunked transcoding
+    private String job;
+    private List<Integer> renditions = new ArrayList<>();
+    private Integer partIndex;
+    private Double percent = 0.0;
+    // multiple of realtime
+    private Double speed = 0.0;
+    private String serverLocation;
+    private ETranscodeProgressStatus status = ETranscodeProgressStatus.RUNNING;
+    @LastModifiedDate
+    private Instant updatedDate;
+}
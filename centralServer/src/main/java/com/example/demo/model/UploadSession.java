@@ -19,7 +19,21 @@ public class UploadSession {
     private String fileType;
     private String fileName;
     private Long fileSize;
+    // bytes per chunk, every chunk but the last has exactly this size
+    private Long chunkSize;
+    // chunks go to their offset in one upload file instead of chunk files, fixed by the first chunk
+    private Boolean positionalWrites;
     private Integer uploadedChunks = 0;
+    // bytes stored contiguously from the start, for uploads over the tus protocol
+    private Long uploadOffset;
+    // bitmap of received chunk indexes (java.util.BitSet#toByteArray)
+    private byte[] receivedChunks;
+    // hex SHA-256 of the whole file as declared by the client, verified before the video is processed
+    private String fileSha256;
+    // the video finalization created, recorded before the merge so a retried finalization reuses it
+    private String videoId;
+    // why finalization failed, only with status FAILED
+    private String error;
     @CreatedDate
     private Instant createdDate;
 }
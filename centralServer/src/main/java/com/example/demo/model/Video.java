@@ -7,7 +7,11 @@ import org.springframework.data.annotation.LastModifiedDate;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 @Data
@@ -16,15 +20,29 @@ public class Video {
     @Id
     private String id;
     private String username;
+    private String sessionId;
 
     private String title;
     private String description="";
     private String thumbnail="";
+    // WebVTT index of the seek-preview sprite sheets and a short muted hover clip, empty until generated
+    private String storyboard="";
+    private String previewClip="";
     // second
     private Integer duration = 0;
     private Set<String> server_locations = new HashSet<>();
     private Set<EVideoResolution> resolutions = new HashSet<>();
     private EVideoPrivacy privacy = EVideoPrivacy.PUBLIC;
+    // true once at least one rendition can be played
+    private boolean playable;
+    private Instant playableDate;
+    private MediaInfo mediaInfo;
+    // SHA-256 of the uploaded file, videos with the same hash share their renditions
+    private String contentHash;
+    // renditions chosen by the ladder planner, highest first
+    private List<LadderRung> ladder = new ArrayList<>();
+    // x264 preset each rendition was encoded with, keyed by height
+    private Map<String, String> renditionPresets = new HashMap<>();
     @CreatedDate
     private Instant uploadedDate;
     @LastModifiedDate
@@ -0,0 +1,13 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.TranscodeProgress;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import java.time.Instant;
+import java.util.List;
+
+public interface TranscodeProgressRepository extends MongoRepository<TranscodeProgress, String> {
+    List<TranscodeProgress> findBySessionId(String sessionId);
+
+    List<TranscodeProgress> findBySessionIdAndUpdatedDateAfter(String sessionId, Instant updatedDate);
+}
@@ -0,0 +1,142 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ETranscodeProgressStatus;
+import com.example.demo.model.EUploadStatus;
+import com.example.demo.model.EVideoResolution;
+import com.example.demo.model.LadderRung;
+import com.example.demo.model.TranscodeProgress;
+import com.example.demo.model.UploadSession;
+import com.example.demo.model.Video;
+import com.example.demo.repository.TranscodeProgressRepository;
+import com.example.demo.repository.UploadSessionRepository;
+import com.example.demo.repository.VideoRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+/**
+ * Streams the transcode progress that sub servers write to transcode_progress as server-sent events,
+ * one stream per upload session.
+ */
+@Service
+public class UploadProgressService {
+    private static final long EMITTER_TIMEOUT_MILLIS = 30 * 60 * 1000L;
+
+    @Autowired
+    private TranscodeProgressRepository transcodeProgressRepository;
+
+    @Autowired
+    private UploadSessionRepository uploadSessionRepository;
+
+    @Autowired
+    private VideoRepository videoRepository;
+
+    private final Map<String, List<SseEmitter>> emitters = new ConcurrentHashMap<>();
+    private final Map<String, Instant> lastSent = new ConcurrentHashMap<>();
+
+    public SseEmitter subscribe(String sessionId) {
+        SseEmitter emitter = new SseEmitter(EMITTER_TIMEOUT_MILLIS);
+        emitters.computeIfAbsent(sessionId, id -> new CopyOnWriteArrayList<>()).add(emitter);
+        emitter.onCompletion(() -> remove(sessionId, emitter));
+        emitter.onTimeout(() -> remove(sessionId, emitter));
+        emitter.onError(e -> remove(sessionId, emitter));
+
+        // a new subscriber gets everything known so far, later ticks only send changes
+        List<TranscodeProgress> snapshot = transcodeProgressRepository.findBySessionId(sessionId);
+        send(sessionId, emitter, "progress", snapshot);
+        lastSent.merge(sessionId, latestUpdate(snapshot), (a, b) -> a.isAfter(b) ? a : b);
+        return emitter;
+    }
+
+    @Scheduled(fixedDelay = 1000)
+    public void pushUpdates() {
+        for (Map.Entry<String, List<SseEmitter>> entry : emitters.entrySet()) {
+            String sessionId = entry.getKey();
+            Instant since = lastSent.getOrDefault(sessionId, Instant.EPOCH);
+            List<TranscodeProgress> changed = transcodeProgressRepository.findBySessionIdAndUpdatedDateAfter(sessionId, since);
+            if (!changed.isEmpty()) {
+                lastSent.put(sessionId, latestUpdate(changed));
+                for (SseEmitter emitter : entry.getValue()) {
+                    send(sessionId, emitter, "progress", changed);
+                }
+            }
+
+            UploadSession session = uploadSessionRepository.findById(sessionId).orElse(null);
+            if (session != null && session.getStatus() == EUploadStatus.FAILED) {
+                for (SseEmitter emitter : entry.getValue()) {
+                    send(sessionId, emitter, "failed", Map.of("sessionId", sessionId,
+                            "error", session.getError() != null ? session.getError() : ""));
+                    emitter.complete();
+                }
+                continue;
+            }
+
+            if (isFinished(session)) {
+                for (SseEmitter emitter : entry.getValue()) {
+                    send(sessionId, emitter, "complete", Map.of("sessionId", sessionId));
+                    emitter.complete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Done once every rendition of the planned ladder is on the video and no job is running. Queued work has no
+     * progress yet, so the running jobs alone would report the video done as soon as the fast-start rendition is.
+     */
+    boolean isFinished(UploadSession session) {
+        if (session == null || session.getStatus() != EUploadStatus.COMPLETED) {
+            return false;
+        }
+        List<TranscodeProgress> all = transcodeProgressRepository.findBySessionId(session.getId());
+        if (all.stream().anyMatch(p -> p.getStatus() == ETranscodeProgressStatus.RUNNING)) {
+            return false;
+        }
+        Video video = session.getVideoId() != null ? videoRepository.findById(session.getVideoId()).orElse(null) : null;
+        if (video == null) {
+            // finalized before the session recorded its video
+            return !all.isEmpty();
+        }
+        Set<Integer> available = video.getResolutions().stream().map(EVideoResolution::getValue).collect(Collectors.toSet());
+        // an empty ladder means there was nothing to transcode
+        return video.getLadder().stream().map(LadderRung::getHeight).allMatch(available::contains);
+    }
+
+    private void send(String sessionId, SseEmitter emitter, String event, Object data) {
+        try {
+            emitter.send(SseEmitter.event().name(event).data(data));
+        } catch (IOException | IllegalStateException e) {
+            remove(sessionId, emitter);
+        }
+    }
+
+    private void remove(String sessionId, SseEmitter emitter) {
+        emitters.computeIfPresent(sessionId, (id, list) -> {
+            list.remove(emitter);
+            return list.isEmpty() ? null : list;
+        });
+        if (!emitters.containsKey(sessionId)) {
+            lastSent.remove(sessionId);
+        }
+    }
+
+    private Instant latestUpdate(List<TranscodeProgress> progress) {
+        return progress.stream()
+                .map(TranscodeProgress::getUpdatedDate)
+                .filter(Objects::nonNull)
+                .max(Comparator.naturalOrder())
+                .orElse(Instant.EPOCH);
+    }
+}
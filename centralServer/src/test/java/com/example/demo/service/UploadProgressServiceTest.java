@@ -0,0 +1,137 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ETranscodeProgressStatus;
+import com.example.demo.model.EUploadStatus;
+import com.example.demo.model.EVideoResolution;
+import com.example.demo.model.LadderRung;
+import com.example.demo.model.TranscodeProgress;
+import com.example.demo.model.UploadSession;
+import com.example.demo.model.Video;
+import com.example.demo.repository.TranscodeProgressRepository;
+import com.example.demo.repository.UploadSessionRepository;
+import com.example.demo.repository.VideoRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class UploadProgressServiceTest {
+
+    @Mock
+    private TranscodeProgressRepository transcodeProgressRepository;
+
+    @Mock
+    private UploadSessionRepository uploadSessionRepository;
+
+    @Mock
+    private VideoRepository videoRepository;
+
+    @InjectMocks
+    private UploadProgressService uploadProgressService;
+
+    private UploadSession session;
+    private Video video;
+
+    @BeforeEach
+    void setUp() {
+        session = new UploadSession();
+        session.setId("session1");
+        session.setStatus(EUploadStatus.COMPLETED);
+        session.setVideoId("video1");
+
+        // 1080p source: the planner chose three renditions
+        video = new Video();
+        video.setId("video1");
+        video.setLadder(List.of(rung(1080), rung(720), rung(480)));
+    }
+
+    @Test
+    void testIsFinished_FalseWhileUploading() {
+        // Arrange
+        session.setStatus(EUploadStatus.UPLOADING);
+
+        // Act & Assert
+        assertFalse(uploadProgressService.isFinished(session));
+    }
+
+    @Test
+    void testIsFinished_FalseWhenOnlyFastStartIsDone() {
+        // Arrange: the 480p fast-start job finished, the ladder is still queued and has no progress yet
+        when(transcodeProgressRepository.findBySessionId("session1"))
+                .thenReturn(List.of(progress("480", ETranscodeProgressStatus.DONE)));
+        video.setResolutions(Set.of(EVideoResolution.P480));
+        when(videoRepository.findById("video1")).thenReturn(Optional.of(video));
+
+        // Act & Assert
+        assertFalse(uploadProgressService.isFinished(session));
+    }
+
+    @Test
+    void testIsFinished_FalseWhileAJobIsRunning() {
+        // Arrange
+        when(transcodeProgressRepository.findBySessionId("session1")).thenReturn(List.of(
+                progress("480", ETranscodeProgressStatus.DONE),
+                progress("ladder", ETranscodeProgressStatus.RUNNING)));
+
+        // Act & Assert
+        assertFalse(uploadProgressService.isFinished(session));
+    }
+
+    @Test
+    void testIsFinished_TrueWhenEveryPlannedRenditionIsAvailable() {
+        // Arrange
+        when(transcodeProgressRepository.findBySessionId("session1")).thenReturn(List.of(
+                progress("480", ETranscodeProgressStatus.DONE),
+                progress("ladder", ETranscodeProgressStatus.DONE)));
+        video.setResolutions(Set.of(EVideoResolution.P1080, EVideoResolution.P720, EVideoResolution.P480));
+        when(videoRepository.findById("video1")).thenReturn(Optional.of(video));
+
+        // Act & Assert
+        assertTrue(uploadProgressService.isFinished(session));
+    }
+
+    @Test
+    void testIsFinished_TrueWhenNothingWasPlanned() {
+        // Arrange: smaller than the lowest rendition
+        when(transcodeProgressRepository.findBySessionId("session1")).thenReturn(Collections.emptyList());
+        video.setLadder(Collections.emptyList());
+        when(videoRepository.findById("video1")).thenReturn(Optional.of(video));
+
+        // Act & Assert
+        assertTrue(uploadProgressService.isFinished(session));
+    }
+
+    @Test
+    void testIsFinished_FallsBackToProgressWithoutVideoId() {
+        // Arrange
+        session.setVideoId(null);
+        when(transcodeProgressRepository.findBySessionId("session1"))
+                .thenReturn(List.of(progress("ladder", ETranscodeProgressStatus.DONE)));
+
+        // Act & Assert
+        assertTrue(uploadProgressService.isFinished(session));
+    }
+
+    private static LadderRung rung(int height) {
+        return LadderRung.builder().height(height).build();
+    }
+
+    private static TranscodeProgress progress(String job, ETranscodeProgressStatus status) {
+        TranscodeProgress progress = new TranscodeProgress();
+        progress.setSessionId("session1");
+        progress.setJob(job);
+        progress.setStatus(status);
+        return progress;
+    }
+}
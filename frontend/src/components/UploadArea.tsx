@@ -8,6 +8,7 @@ import { useToast } from "@/hooks/use-toast";
 import accessToken from "@/utils/LocalStorage";
 import { useAuth } from "@/contexts/AuthContext";
 import { AuthDialog } from "./AuthDialog";
+import { sha256OfFile } from "@/utils/Sha256";
 
 export function UploadArea() {
   const [isDragOver, setIsDragOver] = useState(false);
@@ -54,29 +55,60 @@ export function UploadArea() {
         });
       const duration = await getDuration();
 
-      // 2) Upload chunks to destination URL (sub-server)
+      // 2) Upload chunks to destination URL (sub-server), a few at a time; the server
+      // tracks which chunks arrived, so order does not matter, except that the last one goes last
       const token = accessToken.getAccessToken();
-      for (let chunkIndex = 0; chunkIndex < totalChunks; chunkIndex++) {
+      const PARALLEL_CHUNKS = 4;
+      const CHECKSUM_RETRIES = 3;
+      // 503: every chunk is stored but the server could not queue the finalization yet
+      const BUSY_RETRIES = 10;
+      // SubtleCrypto only exists in secure contexts, without it chunks go unverified
+      const sha256Hex = async (blob: Blob): Promise<string | null> => {
+        if (!window.crypto?.subtle) return null;
+        const digest = await window.crypto.subtle.digest("SHA-256", await blob.arrayBuffer());
+        return Array.from(new Uint8Array(digest), (b) => b.toString(16).padStart(2, "0")).join("");
+      };
+      // the whole-file digest is built while the other chunks upload; the last chunk waits for it so
+      // the request that completes the upload carries it and the server can check the merged file
+      const fileSha256 = sha256OfFile(file).catch(() => null);
+      const lastChunk = totalChunks - 1;
+      const uploadChunk = async (chunkIndex: number, attempt = 0, busyAttempt = 0): Promise<void> => {
         const start = chunkIndex * CHUNK_SIZE;
         const end = Math.min(start + CHUNK_SIZE, file.size);
         const chunk = file.slice(start, end);
-        const formData = new FormData();
-        formData.append("file", chunk);
-        formData.append("fileName", file.name);
-        formData.append("fileType", file.type || "application/octet-stream");
-        formData.append("fileSize", String(file.size));
-        if (duration != null) formData.append("fileDuration", String(duration));
-        formData.append("sessionId", sessionId);
-        formData.append("chunkIndex", String(chunkIndex));
-        formData.append("totalChunks", String(totalChunks));
+        // raw body: the server streams it straight to disk without multipart parsing
+        const params = new URLSearchParams({
+          fileName: file.name,
+          fileType: file.type || "application/octet-stream",
+          fileSize: String(file.size),
+          totalChunks: String(totalChunks),
+          chunkSize: String(CHUNK_SIZE),
+        });
+        if (duration != null) params.append("fileDuration", String(duration));
+        const chunkSha256 = await sha256Hex(chunk);
+        const uploadSha256 = chunkIndex === lastChunk ? await fileSha256 : null;
 
-        const uploadRes = await fetch(destinationUrl, {
-          method: "POST",
+        const uploadRes = await fetch(`${destinationUrl}/chunks/${chunkIndex}?${params}`, {
+          method: "PUT",
           headers: {
+            "Content-Type": "application/octet-stream",
+            ...(chunkSha256 ? { "X-Chunk-SHA256": chunkSha256 } : {}),
+            ...(uploadSha256 ? { "X-Upload-SHA256": uploadSha256 } : {}),
             ...(token ? { Authorization: `Bearer ${token}` } : {}),
           } as Record<string, string>,
-          body: formData,
+          body: chunk,
         });
+        // 422: the chunk arrived corrupted and was dropped, send it again
+        if (uploadRes.status === 422 && attempt < CHECKSUM_RETRIES) {
+          return uploadChunk(chunkIndex, attempt + 1, busyAttempt);
+        }
+        // sending the last chunk again makes the server see the upload complete and queue it again
+        if (uploadRes.status === 503 && busyAttempt < BUSY_RETRIES) {
+          const retryAfter = Number(uploadRes.headers.get("Retry-After"));
+          const delaySeconds = Number.isFinite(retryAfter) && retryAfter > 0 ? retryAfter : 5;
+          await new Promise((resolve) => setTimeout(resolve, delaySeconds * 1000));
+          return uploadChunk(chunkIndex, attempt, busyAttempt + 1);
+        }
         if (!uploadRes.ok) {
           try {
             // eslint-disable-next-line no-console
@@ -84,18 +116,26 @@ export function UploadArea() {
           } catch {}
           throw new Error(`Chunk ${chunkIndex} upload failed: ${uploadRes.status}`);
         }
-        // UI remains the same; progress could be used internally if needed
-        // const progressPct = Math.round(((chunkIndex + 1) / totalChunks) * 100);
-      }
+      };
+      let nextChunk = 0;
+      const worker = async (): Promise<void> => {
+        while (nextChunk < lastChunk) {
+          await uploadChunk(nextChunk++);
+        }
+      };
+      await Promise.all(Array.from({ length: Math.min(PARALLEL_CHUNKS, lastChunk) }, worker));
+      await uploadChunk(lastChunk);
 
       // 3) Poll session status for processing/transcode completion
       const poll = async (): Promise<void> => {
         try {
           const s = await axios.get(`/api/uploads/sessions/${sessionId}`);
           const status = (s.data?.status ?? "").toString();
-          if (status && status !== "UPLOADING") {
+          if (status === "COMPLETED") {
             toast({ title: "Xử lý xong", description: `Video ${file.name} đã sẵn sàng` });
             await queryClient.invalidateQueries({ queryKey: ["recentVideos"] });
+          } else if (status === "FAILED") {
+            toast({ title: "Xử lý thất bại", description: s.data?.error ?? `Video ${file.name} không xử lý được`, variant: "destructive" });
           } else {
             setTimeout(() => { void poll(); }, 2000);
           }
@@ -0,0 +1,22 @@
+package com.example.demo.config;
+
+import com.example.demo.util.ProcessSupervisor;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+import java.time.Duration;
+
+@Configuration
+public class FFmpegConfig {
+    @Value("${icurff.ffmpeg.timeout-minutes:360}")
+    private long timeoutMinutes;
+
+    @Value("${icurff.ffmpeg.no-progress-timeout-seconds:300}")
+    private long noProgressTimeoutSeconds;
+
+    @PostConstruct
+    public void configureProcessSupervisor() {
+        ProcessSupervisor.configure(Duration.ofMinutes(timeoutMinutes), Duration.ofSeconds(noProgressTimeoutSeconds));
+    }
+}
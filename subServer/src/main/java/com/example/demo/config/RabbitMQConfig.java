@@ -1,6 +1,7 @@
 package com.example.demo.config;
 
 
+import com.example.demo.service.TranscodeWorkerPool;
 import org.springframework.amqp.core.*;
 import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
@@ -11,6 +12,9 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Configuration
 public class RabbitMQConfig {
     @Value("${rabbitmq.exchange}")
@@ -19,6 +23,8 @@ public class RabbitMQConfig {
     private String queueName;
     @Value("${rabbitmq.routingkey}")
     private String routingkey;
+    @Value("${rabbitmq.retry.delays-ms:30000,120000,600000}")
+    private long[] retryDelaysMs;
 
     @Bean
     public TopicExchange exchange() {
@@ -27,7 +33,10 @@ public class RabbitMQConfig {
 
     @Bean
     public Queue queue() {
-        return new Queue(queueName, true);
+        // fast-start renditions are published with a higher priority than the rest of the ladder
+        return QueueBuilder.durable(queueName)
+                .maxPriority(10)
+                .build();
     }
 
     @Bean
@@ -35,6 +44,38 @@ public class RabbitMQConfig {
         return BindingBuilder.bind(queue).to(exchange).with(routingkey);
     }
 
+    /**
+     * One delay queue per retry step. A failed task is parked in the queue of its attempt and, when the queue's
+     * TTL runs out, dead-lettered back to the task exchange. Per-queue TTLs keep a long delay from holding up
+     * shorter ones behind it.
+     */
+    @Bean
+    public Declarables retryQueues() {
+        List<Declarable> queues = new ArrayList<>();
+        for (long delay : retryDelaysMs) {
+            queues.add(QueueBuilder.durable(retryQueueName(queueName, delay))
+                    .ttl((int) delay)
+                    .deadLetterExchange(exchangeName)
+                    .deadLetterRoutingKey(routingkey)
+                    .build());
+        }
+        return new Declarables(queues);
+    }
+
+    // tasks that failed every retry wait here for someone to look at them
+    @Bean
+    public Queue deadLetterQueue() {
+        return QueueBuilder.durable(deadLetterQueueName(queueName)).build();
+    }
+
+    public static String retryQueueName(String queueName, long delayMs) {
+        return queueName + ".retry." + delayMs;
+    }
+
+    public static String deadLetterQueueName(String queueName) {
+        return queueName + ".dlq";
+    }
+
     @Bean
     public MessageConverter messsageConverter() {
         return new Jackson2JsonMessageConverter();
@@ -63,12 +104,22 @@ public class RabbitMQConfig {
     // CONSUMER
 
     @Bean
-    public SimpleRabbitListenerContainerFactory rabbitListenerContainerFactory(ConnectionFactory connectionFactory) {
+    public SimpleRabbitListenerContainerFactory rabbitListenerContainerFactory(ConnectionFactory connectionFactory,
+                                                                               TranscodeWorkerPool workerPool) {
         SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
         factory.setConnectionFactory(connectionFactory);
         factory.setMessageConverter(messsageConverter());
-        factory.setConcurrentConsumers(1);
+        // one job per consumer; the container adds consumers while messages keep arriving
+        // and retires them again once they sit idle
+        factory.setConcurrentConsumers(workerPool.getMinWorkers());
+        factory.setMaxConcurrentConsumers(workerPool.getMaxWorkers());
+        factory.setConsecutiveActiveTrigger(1);
+        factory.setStartConsumerMinInterval(2000L);
+        factory.setConsecutiveIdleTrigger(3);
+        factory.setStopConsumerMinInterval(30000L);
         factory.setPrefetchCount(1);
+        // a task is acked once its output is on disk, a crash or restart in between redelivers it
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
         return factory;
     }
 
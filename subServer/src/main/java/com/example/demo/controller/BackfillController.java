@@ -0,0 +1,52 @@
+package com.example.demo.controller;
+
+import com.example.demo.model.BackfillJob;
+import com.example.demo.model.EBackfillStatus;
+import com.example.demo.payload.request.backfill.StartBackfillRequest;
+import com.example.demo.service.BackfillService;
+import jakarta.validation.Valid;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+@CrossOrigin(origins = "*")
+@RestController
+@RequestMapping("/api/backfill")
+public class BackfillController {
+
+    @Autowired
+    private BackfillService backfillService;
+
+    @PostMapping
+    public ResponseEntity<BackfillJob> start(@Valid @RequestBody StartBackfillRequest request) {
+        return ResponseEntity.accepted().body(backfillService.start(request.getType()));
+    }
+
+    @GetMapping
+    public ResponseEntity<List<BackfillJob>> list() {
+        return ResponseEntity.ok(backfillService.list());
+    }
+
+    @PostMapping("/{jobId}/pause")
+    public ResponseEntity<BackfillJob> pause(@PathVariable String jobId) {
+        return ResponseEntity.ok(backfillService.setStatus(jobId, EBackfillStatus.PAUSED));
+    }
+
+    @PostMapping("/{jobId}/resume")
+    public ResponseEntity<BackfillJob> resume(@PathVariable String jobId) {
+        return ResponseEntity.ok(backfillService.setStatus(jobId, EBackfillStatus.RUNNING));
+    }
+
+    @PostMapping("/{jobId}/cancel")
+    public ResponseEntity<BackfillJob> cancel(@PathVariable String jobId) {
+        return ResponseEntity.ok(backfillService.setStatus(jobId, EBackfillStatus.CANCELLED));
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.demo.controller;
+
+import com.example.demo.util.ProcessInfo;
+import com.example.demo.util.ProcessSupervisor;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Map;
+
+@CrossOrigin(origins = "*")
+@RestController
+@RequestMapping("/api/processes")
+public class ProcessController {
+
+    @GetMapping
+    public ResponseEntity<List<ProcessInfo>> listProcesses() {
+        return ResponseEntity.ok(ProcessSupervisor.list());
+    }
+
+    @DeleteMapping("/{processId}")
+    public ResponseEntity<?> cancelProcess(@PathVariable String processId) {
+        if (!ProcessSupervisor.cancel(processId)) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.accepted().build();
+    }
+
+    @DeleteMapping("/videos/{videoId}")
+    public ResponseEntity<Map<String, Object>> cancelVideoProcesses(@PathVariable String videoId) {
+        int cancelled = ProcessSupervisor.cancelByTag(videoId);
+        return ResponseEntity.ok(Map.of("videoId", videoId, "cancelled", cancelled));
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.demo.controller;
+
+import com.example.demo.exception.ChunkIntegrityException;
+import com.example.demo.exception.ResourceNotFoundException;
+import com.example.demo.exception.ResourceTakenException;
+import com.example.demo.model.EUploadStatus;
+import com.example.demo.model.UploadSession;
+import com.example.demo.security.UserDetailsImpl;
+import com.example.demo.service.EarlyIngestService;
+import com.example.demo.service.TusUploadService;
+import com.example.demo.service.UploadFinalizeService;
+import com.example.demo.util.ChunkChecksum;
+import jakarta.servlet.http.HttpServletRequest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * tus 1.0 endpoint (core, creation, termination and checksum extensions) for clients that need to resume
+ * uploads across dropped connections. See {@link TusUploadService} for how uploads map onto upload sessions.
+ */
+@CrossOrigin(origins = "*", maxAge = 3600, exposedHeaders = {"Location", "Upload-Offset", "Upload-Length",
+        "Tus-Resumable", "Upload-Metadata", "Tus-Version", "Tus-Extension", "Tus-Max-Size", "Tus-Checksum-Algorithm"})
+@RestController
+@RequestMapping("/api/tus")
+public class TusUploadController {
+    private static final String TUS_RESUMABLE = "Tus-Resumable";
+    private static final String TUS_VERSION = "1.0.0";
+    private static final String UPLOAD_OFFSET = "Upload-Offset";
+    private static final String UPLOAD_LENGTH = "Upload-Length";
+    private static final String OFFSET_OCTET_STREAM = "application/offset+octet-stream";
+    // tus checksum extension: the body did not match Upload-Checksum
+    private static final int CHECKSUM_MISMATCH = 460;
+
+    @Autowired
+    private TusUploadService tusUploadService;
+
+    @Autowired
+    private UploadFinalizeService uploadFinalizeService;
+
+    @Autowired
+    private EarlyIngestService earlyIngestService;
+
+    @RequestMapping(method = RequestMethod.OPTIONS)
+    public ResponseEntity<Void> options() {
+        ResponseEntity.BodyBuilder response = tus(HttpStatus.NO_CONTENT)
+                .header("Tus-Version", TUS_VERSION)
+                .header("Tus-Extension", "creation,termination,checksum")
+                .header("Tus-Checksum-Algorithm", "sha256,crc32c");
+        if (tusUploadService.getMaxSize() > 0) {
+            response.header("Tus-Max-Size", String.valueOf(tusUploadService.getMaxSize()));
+        }
+        return response.build();
+    }
+
+    @PostMapping
+    public ResponseEntity<Void> create(@AuthenticationPrincipal UserDetailsImpl userDetails,
+                                       @RequestHeader(value = TUS_RESUMABLE, required = false) String version,
+                                       @RequestHeader(value = UPLOAD_LENGTH, required = false) Long length,
+                                       @RequestHeader(value = "Upload-Metadata", required = false) String metadata) throws IOException {
+        if (!TUS_VERSION.equals(version)) return unsupportedVersion();
+        if (length == null) {
+            // Upload-Defer-Length is not supported, the size decides the preallocation and the chunk layout
+            throw new IllegalArgumentException("Upload-Length is required");
+        }
+        if (tusUploadService.getMaxSize() > 0 && length > tusUploadService.getMaxSize()) {
+            return tus(HttpStatus.PAYLOAD_TOO_LARGE).build();
+        }
+        UploadSession session = tusUploadService.create(userDetails.getId(), userDetails.getUsername(), length,
+                parseMetadata(metadata));
+        return tus(HttpStatus.CREATED)
+                .location(ServletUriComponentsBuilder.fromCurrentRequest().path("/{sessionId}")
+                        .buildAndExpand(session.getId()).toUri())
+                .header(UPLOAD_OFFSET, String.valueOf(session.getUploadOffset()))
+                .build();
+    }
+
+    @RequestMapping(value = "/{sessionId}", method = RequestMethod.HEAD)
+    public ResponseEntity<Void> offset(@AuthenticationPrincipal UserDetailsImpl userDetails,
+                                       @PathVariable String sessionId,
+                                       @RequestHeader(value = TUS_RESUMABLE, required = false) String version) {
+        if (!TUS_VERSION.equals(version)) return unsupportedVersion();
+        UploadSession session = tusUploadService.find(userDetails.getId(), sessionId);
+        if (session.getUploadOffset() == null) {
+            throw new ResourceNotFoundException("Upload " + sessionId + " was not created over tus");
+        }
+        // a complete upload whose finalization could not be queued gets another try whenever the client looks
+        if (session.getStatus() == EUploadStatus.UPLOADING && tusUploadService.isComplete(session)) {
+            submit(userDetails.getUsername(), session);
+        }
+        return tus(HttpStatus.OK)
+                .header(UPLOAD_OFFSET, String.valueOf(session.getUploadOffset()))
+                .header(UPLOAD_LENGTH, String.valueOf(session.getFileSize()))
+                .header(HttpHeaders.CACHE_CONTROL, "no-store")
+                .build();
+    }
+
+    @PatchMapping(value = "/{sessionId}", consumes = OFFSET_OCTET_STREAM)
+    public ResponseEntity<Void> append(@AuthenticationPrincipal UserDetailsImpl userDetails,
+                                       @PathVariable String sessionId,
+                                       @RequestHeader(value = TUS_RESUMABLE, required = false) String version,
+                                       @RequestHeader(UPLOAD_OFFSET) long offset,
+                                       @RequestHeader(value = "Upload-Checksum", required = false) String checksum,
+                                       HttpServletRequest request) throws IOException {
+        if (!TUS_VERSION.equals(version)) return unsupportedVersion();
+        long newOffset = tusUploadService.append(userDetails.getId(), userDetails.getUsername(), sessionId, offset,
+                request.getInputStream(), request.getContentLengthLong(), parseChecksum(checksum));
+        UploadSession session = tusUploadService.find(userDetails.getId(), sessionId);
+        earlyIngestService.progress(userDetails.getUsername(), sessionId, newOffset, session.getFileSize());
+        if (tusUploadService.isComplete(session) && !submit(userDetails.getUsername(), session)) {
+            // the bytes are stored; the retry's HEAD sees the full offset and queues the finalization
+            return tus(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, "5")
+                    .header(UPLOAD_OFFSET, String.valueOf(newOffset))
+                    .build();
+        }
+        return tus(HttpStatus.NO_CONTENT).header(UPLOAD_OFFSET, String.valueOf(newOffset)).build();
+    }
+
+    @DeleteMapping("/{sessionId}")
+    public ResponseEntity<Void> terminate(@AuthenticationPrincipal UserDetailsImpl userDetails,
+                                          @PathVariable String sessionId,
+                                          @RequestHeader(value = TUS_RESUMABLE, required = false) String version) throws IOException {
+        if (!TUS_VERSION.equals(version)) return unsupportedVersion();
+        tusUploadService.terminate(userDetails.getId(), userDetails.getUsername(), sessionId);
+        return tus(HttpStatus.NO_CONTENT).build();
+    }
+
+    @ExceptionHandler(ChunkIntegrityException.class)
+    public ResponseEntity<String> handleChecksumMismatch(ChunkIntegrityException ex) {
+        return ResponseEntity.status(CHECKSUM_MISMATCH).header(TUS_RESUMABLE, TUS_VERSION).body(ex.getMessage());
+    }
+
+    @ExceptionHandler(ResourceTakenException.class)
+    public ResponseEntity<String> handleConflict(ResourceTakenException ex) {
+        return tus(HttpStatus.CONFLICT).body(ex.getMessage());
+    }
+
+    @ExceptionHandler(ResourceNotFoundException.class)
+    public ResponseEntity<String> handleNotFound(ResourceNotFoundException ex) {
+        return tus(HttpStatus.NOT_FOUND).body(ex.getMessage());
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<String> handleBadRequest(IllegalArgumentException ex) {
+        return tus(HttpStatus.BAD_REQUEST).body(ex.getMessage());
+    }
+
+    private boolean submit(String username, UploadSession session) {
+        return uploadFinalizeService.submit(username, session.getId(), session.getFileName(), session.getFileType(),
+                session.getFileSize(), session.getDuration(), null);
+    }
+
+    private ResponseEntity.BodyBuilder tus(HttpStatus status) {
+        return ResponseEntity.status(status).header(TUS_RESUMABLE, TUS_VERSION);
+    }
+
+    private ResponseEntity<Void> unsupportedVersion() {
+        return tus(HttpStatus.PRECONDITION_FAILED).header("Tus-Version", TUS_VERSION).build();
+    }
+
+    /**
+     * "key base64value" pairs separated by commas, the value may be missing.
+     */
+    private static Map<String, String> parseMetadata(String header) {
+        Map<String, String> metadata = new HashMap<>();
+        if (header == null || header.isBlank()) return metadata;
+        for (String pair : header.split(",")) {
+            String[] parts = pair.trim().split(" ", 2);
+            if (parts[0].isEmpty()) continue;
+            try {
+                metadata.put(parts[0], parts.length > 1
+                        ? new String(Base64.getDecoder().decode(parts[1].trim()), StandardCharsets.UTF_8)
+                        : "");
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Upload-Metadata value of " + parts[0] + " is not base64");
+            }
+        }
+        return metadata;
+    }
+
+    /**
+     * "algorithm base64digest" as the tus checksum extension sends it.
+     */
+    private static ChunkChecksum parseChecksum(String header) {
+        if (header == null || header.isBlank()) return null;
+        String[] parts = header.trim().split(" ", 2);
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Upload-Checksum has to be \"algorithm base64digest\"");
+        }
+        byte[] digest;
+        try {
+            digest = Base64.getDecoder().decode(parts[1].trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Upload-Checksum digest is not base64");
+        }
+        return switch (parts[0].toLowerCase(Locale.ROOT)) {
+            case "sha256" -> ChunkChecksum.of(null, HexFormat.of().formatHex(digest));
+            case "crc32c" -> {
+                if (digest.length != 4) throw new IllegalArgumentException("A crc32c digest has 4 bytes");
+                yield ChunkChecksum.of(String.format("%08x", ByteBuffer.wrap(digest).getInt()), null);
+            }
+            default -> throw new IllegalArgumentException("Unsupported checksum algorithm " + parts[0]);
+        };
+    }
+}
@@ -1,23 +1,56 @@
 package com.example.demo.controller;
 
 
+import com.example.demo.exception.ResourceNotFoundException;
+import com.example.demo.model.EUploadStatus;
+import com.example.demo.model.UploadSession;
+import com.example.demo.payload.response.UploadStatusResponse;
+import com.example.demo.repository.UploadSessionRepository;
 import com.example.demo.security.UserDetailsImpl;
+import com.example.demo.service.EarlyIngestService;
+import com.example.demo.service.UploadChunkTracker;
+import com.example.demo.service.UploadFinalizeService;
 import com.example.demo.service.VideoService;
+import com.example.demo.util.ChunkChecksum;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.IOException;
 import java.util.Map;
+import java.util.Objects;
 
 @CrossOrigin(origins = "*", maxAge = 3600)
 @RestController
 @RequestMapping("/api/uploads")
 public class UploadSessionController {
+    // optional hex checksums; a chunk that does not match is answered with 422 and has to be sent again
+    private static final String CHUNK_CRC32C = "X-Chunk-CRC32C";
+    private static final String CHUNK_SHA256 = "X-Chunk-SHA256";
+    // optional hex SHA-256 of the whole file, checked against the digest built while the chunks arrived
+    private static final String UPLOAD_SHA256 = "X-Upload-SHA256";
+
     @Autowired
     private VideoService videoService;
 
+    @Autowired
+    private UploadFinalizeService uploadFinalizeService;
+
+    @Autowired
+    private UploadSessionRepository uploadSessionRepository;
+
+    @Autowired
+    private UploadChunkTracker uploadChunkTracker;
+
+    @Autowired
+    private EarlyIngestService earlyIngestService;
+
     @PostMapping("/{sessionId}")
     public ResponseEntity<?> uploadChunk(
             @AuthenticationPrincipal UserDetailsImpl userDetails,
@@ -28,21 +61,91 @@ public class UploadSessionController {
             @RequestParam("fileName") String fileName,
             @RequestParam("fileType") String fileType,
             @RequestParam("fileSize") Long fileSize,
-            @RequestParam("fileDuration") Integer fileDuration
-    ) {
-        try {
-            String username = userDetails.getUsername();
-            videoService.saveChunk(username, sessionId, chunkIndex, chunk);
-            if (chunkIndex == totalChunks - 1) {
-                videoService.mergeChunks(username, sessionId, fileName, fileType, fileSize, fileDuration);
-                return ResponseEntity.ok("ok");
+            @RequestParam("fileDuration") Integer fileDuration,
+            @RequestParam(value = "chunkSize", required = false) Long chunkSize,
+            @RequestHeader(value = CHUNK_CRC32C, required = false) String chunkCrc32c,
+            @RequestHeader(value = CHUNK_SHA256, required = false) String chunkSha256,
+            @RequestHeader(value = UPLOAD_SHA256, required = false) String fileSha256
+    ) throws IOException {
+        String username = userDetails.getUsername();
+        long checksum = videoService.saveChunk(username, sessionId, chunkIndex, totalChunks, fileSize, chunkSize, chunk,
+                ChunkChecksum.of(chunkCrc32c, chunkSha256));
+        return chunkStored(username, sessionId, chunkIndex, totalChunks, fileName, fileType, fileSize, fileDuration,
+                chunkSize, fileSha256, checksum);
+    }
+
+    /**
+     * Same as the multipart upload, but the chunk is the raw request body. It is streamed from the request
+     * straight to its place on disk and never buffered by the multipart resolver.
+     */
+    @PutMapping(value = "/{sessionId}/chunks/{chunkIndex}", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<?> uploadRawChunk(
+            @AuthenticationPrincipal UserDetailsImpl userDetails,
+            @PathVariable String sessionId,
+            @PathVariable int chunkIndex,
+            @RequestParam("totalChunks") int totalChunks,
+            @RequestParam("fileName") String fileName,
+            @RequestParam("fileType") String fileType,
+            @RequestParam("fileSize") Long fileSize,
+            @RequestParam("fileDuration") Integer fileDuration,
+            @RequestParam(value = "chunkSize", required = false) Long chunkSize,
+            @RequestHeader(value = CHUNK_CRC32C, required = false) String chunkCrc32c,
+            @RequestHeader(value = CHUNK_SHA256, required = false) String chunkSha256,
+            @RequestHeader(value = UPLOAD_SHA256, required = false) String fileSha256,
+            HttpServletRequest request
+    ) throws IOException {
+        long length = request.getContentLengthLong();
+        if (length < 0) {
+            throw new IllegalArgumentException("Content-Length is required");
+        }
+        String username = userDetails.getUsername();
+        long checksum = videoService.saveChunk(username, sessionId, chunkIndex, totalChunks, fileSize, chunkSize,
+                request.getInputStream(), length, ChunkChecksum.of(chunkCrc32c, chunkSha256));
+        return chunkStored(username, sessionId, chunkIndex, totalChunks, fileName, fileType, fileSize, fileDuration,
+                chunkSize, fileSha256, checksum);
+    }
+
+    private ResponseEntity<?> chunkStored(String username, String sessionId, int chunkIndex, int totalChunks,
+                                          String fileName, String fileType, Long fileSize, Integer fileDuration,
+                                          Long chunkSize, String fileSha256, long checksum) {
+        String crc32c = String.format("%08x", checksum);
+        // chunks may arrive in any order, the upload is done once every one of them is stored
+        boolean complete = uploadChunkTracker.markReceived(sessionId, chunkIndex, totalChunks);
+        if (fileSize != null && chunkSize != null && chunkSize > 0) {
+            long contiguous = Math.min(fileSize, uploadChunkTracker.contiguousCount(sessionId) * chunkSize);
+            earlyIngestService.progress(username, sessionId, contiguous, fileSize);
+        }
+        if (complete) {
+            // merging, probing and the thumbnail run in the background, poll GET /api/uploads/{sessionId}
+            if (!uploadFinalizeService.submit(username, sessionId, fileName, fileType, fileSize, fileDuration, fileSha256)) {
+                return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                        .header(HttpHeaders.RETRY_AFTER, "5")
+                        .body(Map.of("status", "busy", "chunkIndex", chunkIndex, "totalChunks", totalChunks));
             }
-        }catch (Exception e){
-            e.printStackTrace();
+            return ResponseEntity.accepted()
+                    .body(Map.of("status", EUploadStatus.FINALIZING, "sessionId", sessionId, "crc32c", crc32c));
         }
-        return ResponseEntity.ok(Map.of("status", "ok", "chunkIndex", chunkIndex, "totalChunks", totalChunks));
+        return ResponseEntity.ok(Map.of("status", "ok", "chunkIndex", chunkIndex, "totalChunks", totalChunks,
+                "receivedChunks", uploadChunkTracker.receivedCount(sessionId), "crc32c", crc32c));
     }
 
+    @GetMapping("/{sessionId}")
+    public ResponseEntity<UploadStatusResponse> getStatus(@AuthenticationPrincipal UserDetailsImpl userDetails,
+                                                          @PathVariable String sessionId) {
+        UploadSession session = uploadSessionRepository.findById(sessionId)
+                .filter(s -> Objects.equals(s.getUser_id(), userDetails.getId()))
+                .orElseThrow(() -> new ResourceNotFoundException("Upload session not found"));
+        int totalChunks = session.getTotalChunks() != null ? session.getTotalChunks() : 0;
+        return ResponseEntity.ok(UploadStatusResponse.builder()
+                .sessionId(session.getId())
+                .status(session.getStatus())
+                .totalChunks(totalChunks)
+                .receivedChunks(uploadChunkTracker.receivedCount(sessionId))
+                .missing(uploadChunkTracker.missingRanges(sessionId, totalChunks))
+                .videoId(session.getVideoId())
+                .error(session.getError())
+                .build());
+    }
 
-}
 
+}
@@ -0,0 +1,30 @@
+package com.example.demo.controller;
+
+import com.example.demo.payload.response.WorkerPoolStatsResponse;
+import com.example.demo.service.TranscodeProgressService;
+import com.example.demo.service.TranscodeWorkerPool;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+@CrossOrigin(origins = "*")
+@RestController
+@RequestMapping("/api/workers")
+public class WorkerController {
+
+    @Autowired
+    private TranscodeWorkerPool transcodeWorkerPool;
+
+    @Autowired
+    private TranscodeProgressService transcodeProgressService;
+
+    @GetMapping
+    public ResponseEntity<WorkerPoolStatsResponse> getWorkerStats() {
+        WorkerPoolStatsResponse stats = transcodeWorkerPool.getStats();
+        stats.setRecentSpeed(transcodeProgressService.getRecentSpeed());
+        return ResponseEntity.ok(stats);
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.demo.exception;
+
+
+public class ChunkIntegrityException extends RuntimeException {
+    private final int chunkIndex;
+
+    public ChunkIntegrityException(String message) {
+        this(-1, message);
+    }
+
+    public ChunkIntegrityException(int chunkIndex, String message) {
+        super(message);
+        this.chunkIndex = chunkIndex;
+    }
+
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+}
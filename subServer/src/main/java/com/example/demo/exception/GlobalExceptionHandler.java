@@ -2,6 +2,7 @@ package com.example.demo.exception;
 
 
 import com.example.demo.payload.response.ErrorResponse;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.ExceptionHandler;
@@ -24,6 +25,23 @@ public class GlobalExceptionHandler {
                 .body(new ErrorResponse(Instant.now(), HttpStatus.CONFLICT.value(), ex.getMessage()));
     }
 
+    // the chunk was not kept, the client should send it again right away
+    @ExceptionHandler(ChunkIntegrityException.class)
+    public ResponseEntity<ErrorResponse> handleChunkIntegrityException(ChunkIntegrityException ex) {
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY)
+                .header(HttpHeaders.RETRY_AFTER, "0");
+        if (ex.getChunkIndex() >= 0) {
+            response.header("X-Retry-Chunk", String.valueOf(ex.getChunkIndex()));
+        }
+        return response.body(new ErrorResponse(Instant.now(), HttpStatus.UNPROCESSABLE_ENTITY.value(), ex.getMessage()));
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    public ResponseEntity<ErrorResponse> handleIllegalArgumentException(IllegalArgumentException ex) {
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                .body(new ErrorResponse(Instant.now(), HttpStatus.BAD_REQUEST.value(), ex.getMessage()));
+    }
+
 
     @ExceptionHandler(Exception.class)
     public ResponseEntity<ErrorResponse> handleGenericException(Exception ex) {
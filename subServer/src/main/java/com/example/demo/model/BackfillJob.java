@@ -0,0 +1,32 @@
+package com.example.demo.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Reprocessing of the videos this server hosts, one at a time and only while the node is otherwise idle.
+ * Videos are visited in id order; the cursor is the last one visited, so a restart carries on from there.
+ */
+@Data
+@Document(collection = "backfill_jobs")
+public class BackfillJob {
+    @Id
+    private String id;
+    private String serverLocation;
+    private EBackfillType type;
+    private EBackfillStatus status = EBackfillStatus.RUNNING;
+    // id of the last video visited, null before the first
+    private String cursor;
+    private long scanned;
+    private long enqueued;
+    @CreatedDate
+    private Instant createdDate;
+    @LastModifiedDate
+    private Instant lastModifiedDate;
+    private Instant completedDate;
+}
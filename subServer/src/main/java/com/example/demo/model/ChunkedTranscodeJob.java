@@ -0,0 +1,38 @@
+package com.example.demo.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.LastModifiedDate;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A long upload transcoded as independent keyframe-aligned parts, stitched back together once every part is done.
+ */
+@Data
+@Document(collection = "chunked_transcode_jobs")
+public class ChunkedTranscodeJob {
+    @Id
+    private String id;
+    private String videoId;
+    // final video directory, renditions end up in {outputDir}/{height}
+    private String outputDir;
+    // parts and their per-part renditions live here until stitched
+    private String workDir;
+    private List<Integer> resolutions = new ArrayList<>();
+    // every part is encoded with the same x264 preset
+    private String preset;
+    private Integer totalParts = 0;
+    private Set<Integer> completedParts = new HashSet<>();
+    private ETranscodeJobStatus status = ETranscodeJobStatus.TRANSCODING;
+    @CreatedDate
+    private Instant createdDate;
+    @LastModifiedDate
+    private Instant lastModifiedDate;
+}
@@ -0,0 +1,28 @@
+package com.example.demo.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Videos of one sub server that were uploaded with identical bytes, keyed by the SHA-256 of the file.
+ * The canonical video is the one later uploads link their renditions from; videoIds is the reference count.
+ */
+@Data
+@Document(collection = "content_hashes")
+public class ContentHashIndex {
+    // sha256 hex @ server location, files can only be shared on the server that holds them
+    @Id
+    private String id;
+    private String hash;
+    private String serverLocation;
+    private String canonicalVideoId;
+    private Set<String> videoIds = new HashSet<>();
+    @CreatedDate
+    private Instant createdDate;
+}
@@ -0,0 +1,8 @@
+package com.example.demo.model;
+
+public enum EBackfillType {
+    // encode the current ladder and audio layout again and swap it in for the old renditions
+    REENCODE,
+    // storyboard and hover clip for videos uploaded before previews existed
+    PREVIEWS
+}
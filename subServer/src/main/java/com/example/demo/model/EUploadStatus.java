@@ -1,5 +1,5 @@
 package com.example.demo.model;
 
 public enum EUploadStatus {
-    UPLOADING, COMPLETED
+    UPLOADING, FINALIZING, COMPLETED, FAILED
 }
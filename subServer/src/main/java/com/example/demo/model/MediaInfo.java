@@ -0,0 +1,61 @@
+package com.example.demo.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * What a single ffprobe pass found out about a media file. Stored on the Video/Livestream document
+ * so later pipeline stages can reuse it instead of probing the file again.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class MediaInfo {
+    private String formatName;
+    // seconds
+    private Double duration;
+    // bits per second, whole container
+    private Long bitrate;
+
+    private String videoCodec;
+    private String pixelFormat;
+    // coded size, before rotation
+    private Integer width;
+    private Integer height;
+    // degrees, as signalled by the display matrix / rotate tag
+    private Integer rotation;
+    private Double frameRate;
+    private Long videoBitrate;
+    // seconds between keyframes over the probed window
+    private Double keyframeInterval;
+    private Double maxKeyframeInterval;
+
+    private boolean hasAudio;
+    private String audioCodec;
+    private Integer audioChannels;
+    private String audioChannelLayout;
+    private Integer audioSampleRate;
+    private Long audioBitrate;
+
+    /**
+     * Height as the viewer sees it, i.e. after applying the rotation.
+     */
+    public int getDisplayHeight() {
+        return isRotatedQuarterTurn() ? nonNull(width) : nonNull(height);
+    }
+
+    public int getDisplayWidth() {
+        return isRotatedQuarterTurn() ? nonNull(height) : nonNull(width);
+    }
+
+    private boolean isRotatedQuarterTurn() {
+        return rotation != null && Math.abs(rotation) % 180 == 90;
+    }
+
+    private static int nonNull(Integer value) {
+        return value != null ? value : 0;
+    }
+}
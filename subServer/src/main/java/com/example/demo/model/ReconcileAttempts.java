@@ -0,0 +1,21 @@
+package com.example.demo.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How often the reconciler requeued the renditions of one video, keyed by height or "audio". A rendition that
+ * is still missing after the limit failed through its retries and the dead-letter queue, and is left alone.
+ */
+@Data
+@Document(collection = "reconcile_attempts")
+public class ReconcileAttempts {
+    // the video id
+    @Id
+    private String id;
+    private Map<String, Integer> attempts = new HashMap<>();
+}
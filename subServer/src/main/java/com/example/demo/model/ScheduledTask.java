@@ -0,0 +1,32 @@
+package com.example.demo.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * A transcode task held back by the fair scheduler until it is its owner's turn. Kept until a consumer is done
+ * with it, so neither pending nor dispatched work is forgotten across a restart.
+ */
+@Data
+@Document(collection = "scheduled_tasks")
+public class ScheduledTask {
+    @Id
+    private String id;
+    private String serverLocation;
+    private String username;
+    private String videoId;
+    // the message published to the task queue once dispatched
+    private Map<String, Object> payload;
+    private Integer priority;
+    // estimated work in megapixel-seconds: duration x output pixels per frame
+    private Double cost;
+    private EScheduledTaskStatus status = EScheduledTaskStatus.PENDING;
+    @CreatedDate
+    private Instant createdDate;
+    private Instant dispatchedDate;
+}
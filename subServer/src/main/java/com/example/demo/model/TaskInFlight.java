@@ -0,0 +1,26 @@
+package com.example.demo.model;
+
+import lombok.Data;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * A task published for a video that no consumer is done with yet, whether it waits in the task queue, runs or
+ * sits in a retry queue. Written before the message is sent and removed once it is acked for good or
+ * dead-lettered, so work on a video can be seen without browsing the broker.
+ */
+@Data
+@Document(collection = "tasks_in_flight")
+public class TaskInFlight {
+    @Id
+    private String id;
+    @Indexed
+    private String videoId;
+    private String action;
+    @CreatedDate
+    private Instant createdDate;
+}
@@ -0,0 +1,12 @@
+package com.example.demo.payload.request.backfill;
+
+import com.example.demo.model.EBackfillType;
+import jakarta.validation.constraints.NotNull;
+import lombok.Data;
+
+@Data
+public class StartBackfillRequest {
+
+    @NotNull
+    private EBackfillType type;
+}
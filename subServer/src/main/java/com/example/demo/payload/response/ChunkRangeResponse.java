@@ -0,0 +1,7 @@
+package com.example.demo.payload.response;
+
+/**
+ * Chunk indexes {@code from} to {@code to}, both inclusive.
+ */
+public record ChunkRangeResponse(int from, int to) {
+}
@@ -0,0 +1,22 @@
+package com.example.demo.payload.response;
+
+import com.example.demo.model.EUploadStatus;
+import lombok.Builder;
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+@Builder
+public class UploadStatusResponse {
+    private String sessionId;
+    private EUploadStatus status;
+    private Integer totalChunks;
+    private Integer receivedChunks;
+    // chunks still to send, empty once everything arrived
+    private List<ChunkRangeResponse> missing;
+    // set once the session is COMPLETED
+    private String videoId;
+    // set when the session FAILED
+    private String error;
+}
@@ -0,0 +1,22 @@
+package com.example.demo.payload.response;
+
+import lombok.Builder;
+import lombok.Data;
+
+@Data
+@Builder
+public class WorkerPoolStatsResponse {
+    private Integer availableCores;
+    private Integer threadsPerJob;
+    private Integer minWorkers;
+    private Integer maxWorkers;
+    private Integer activeJobs;
+    // share of workers busy right now, 0..1
+    private Double utilization;
+    // share of worker time spent busy since startup, 0..1
+    private Double averageUtilization;
+    private Long completedJobs;
+    private Long failedJobs;
+    // smoothed encoding speed of recent jobs, multiple of realtime
+    private Double recentSpeed;
+}
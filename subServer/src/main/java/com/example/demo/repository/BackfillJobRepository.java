@@ -0,0 +1,13 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.BackfillJob;
+import com.example.demo.model.EBackfillStatus;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import java.util.List;
+
+public interface BackfillJobRepository extends MongoRepository<BackfillJob, String> {
+    List<BackfillJob> findByServerLocationOrderByCreatedDateDesc(String serverLocation);
+
+    List<BackfillJob> findByServerLocationAndStatusOrderByCreatedDateAsc(String serverLocation, EBackfillStatus status);
+}
@@ -0,0 +1,7 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.ChunkedTranscodeJob;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface ChunkedTranscodeJobRepository extends MongoRepository<ChunkedTranscodeJob, String> {
+}
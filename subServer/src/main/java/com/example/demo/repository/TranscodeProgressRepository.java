@@ -0,0 +1,7 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.TranscodeProgress;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+public interface TranscodeProgressRepository extends MongoRepository<TranscodeProgress, String> {
+}
@@ -59,7 +59,10 @@ public class WebSecurityConfig {
                 .sessionManagement(session -> session.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
                 .authorizeHttpRequests(auth ->
 
-                        auth.requestMatchers("/api/**").permitAll()
+                        auth.requestMatchers("/api/backfill/**").hasRole("ADMIN")
+                                .requestMatchers("/api/processes/**").hasRole("ADMIN")
+                                .requestMatchers("/api/workers/**").hasRole("ADMIN")
+                                .requestMatchers("/api/**").permitAll()
                                 .requestMatchers("/error").permitAll()
                                .requestMatchers("/v3/**").permitAll()
                                 .requestMatchers("/swagger-ui/**").permitAll()
@@ -0,0 +1,328 @@
+package com.example.demo.service;
+
+import com.example.demo.exception.ResourceNotFoundException;
+import com.example.demo.exception.ResourceTakenException;
+import com.example.demo.model.BackfillJob;
+import com.example.demo.model.EBackfillStatus;
+import com.example.demo.model.EBackfillType;
+import com.example.demo.model.LadderRung;
+import com.example.demo.model.MediaInfo;
+import com.example.demo.model.Video;
+import com.example.demo.repository.BackfillJobRepository;
+import com.example.demo.repository.VideoRepository;
+import com.example.demo.util.FFmpegUtil;
+import com.example.demo.util.StoryboardUtil;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Walks the videos of this server and reprocesses them when the ladder or the pipeline changed. It only uses
+ * idle capacity: a video is queued at the lowest priority, one per tick, and only while the node's CPU is below
+ * the limit, no upload work is waiting and a worker is free, so fresh uploads always come first.
+ * <p>
+ * Re-encodes are written next to the live renditions and swapped in once complete, so the video stays playable.
+ */
+@Slf4j
+@Service
+public class BackfillService {
+    // re-encoded renditions are staged here until all of them are done
+    public static final String STAGE_DIR = ".backfill";
+
+    @Value("${icurff.backfill.enabled:true}")
+    private boolean enabled;
+
+    // share of the node's CPU above which no new work is queued
+    @Value("${icurff.backfill.max-cpu:0.5}")
+    private double maxCpu;
+
+    // videos looked at per tick while searching for one that needs work
+    @Value("${icurff.backfill.scan-batch:100}")
+    private int scanBatch;
+
+    @Value("${icurff.app.storage}")
+    private String storageBaseDir;
+
+    @Value("${icurff.app.location}")
+    private String serverLocation;
+
+    @Autowired
+    private BackfillJobRepository jobRepository;
+
+    @Autowired
+    private VideoRepository videoRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private VideoService videoService;
+
+    @Autowired
+    private LadderPlannerService ladderPlannerService;
+
+    @Autowired
+    private MasterPlaylistService masterPlaylistService;
+
+    @Autowired
+    private TaskPublisherService taskPublisherService;
+
+    @Autowired
+    private TranscodeSchedulerService transcodeSchedulerService;
+
+    @Autowired
+    private TranscodeWorkerPool workerPool;
+
+    @Autowired
+    private ContentDedupService contentDedupService;
+
+    // probing and the CRF probe encodes of the ladder planner take seconds, far too long for the shared scheduler thread
+    private final ThreadPoolTaskExecutor executor;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public BackfillService() {
+        executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(1);
+        executor.setMaxPoolSize(1);
+        executor.setThreadNamePrefix("backfill-");
+        executor.initialize();
+    }
+
+    public BackfillJob start(EBackfillType type) {
+        boolean running = jobRepository.findByServerLocationOrderByCreatedDateDesc(serverLocation).stream()
+                .anyMatch(job -> job.getType() == type
+                        && (job.getStatus() == EBackfillStatus.RUNNING || job.getStatus() == EBackfillStatus.PAUSED));
+        if (running) {
+            throw new ResourceTakenException("A " + type + " backfill is already in progress");
+        }
+        BackfillJob job = new BackfillJob();
+        job.setServerLocation(serverLocation);
+        job.setType(type);
+        return jobRepository.save(job);
+    }
+
+    public List<BackfillJob> list() {
+        return jobRepository.findByServerLocationOrderByCreatedDateDesc(serverLocation);
+    }
+
+    public BackfillJob setStatus(String jobId, EBackfillStatus status) {
+        BackfillJob job = jobRepository.findById(jobId)
+                .filter(found -> serverLocation.equals(found.getServerLocation()))
+                .orElseThrow(() -> new ResourceNotFoundException("Backfill job not found: " + jobId));
+        if (job.getStatus() == EBackfillStatus.COMPLETED || job.getStatus() == EBackfillStatus.CANCELLED) {
+            throw new IllegalArgumentException("Backfill job " + jobId + " is already " + job.getStatus());
+        }
+        job.setStatus(status);
+        return jobRepository.save(job);
+    }
+
+    /**
+     * Only hands the step to the backfill thread, one step at a time, so the shared scheduler thread is not held up.
+     */
+    @Scheduled(fixedDelayString = "${icurff.backfill.tick-ms:30000}")
+    public void tick() {
+        if (!enabled || !running.compareAndSet(false, true)) return;
+        executor.execute(() -> {
+            try {
+                step();
+            } catch (Exception e) {
+                log.error("Backfill step failed: {}", e.getMessage());
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    private void step() {
+        List<BackfillJob> runningJobs = jobRepository.findByServerLocationAndStatusOrderByCreatedDateAsc(serverLocation, EBackfillStatus.RUNNING);
+        if (runningJobs.isEmpty() || !isIdle()) return;
+
+        BackfillJob job = runningJobs.get(0);
+        Criteria criteria = Criteria.where("server_locations").is(serverLocation)
+                // anything uploaded since the job started went through the current pipeline already
+                .and("uploadedDate").lt(job.getCreatedDate());
+        if (job.getCursor() != null) {
+            criteria = criteria.and("_id").gt(new ObjectId(job.getCursor()));
+        }
+        List<Video> videos = mongoTemplate.find(Query.query(criteria)
+                .with(Sort.by(Sort.Direction.ASC, "_id")).limit(scanBatch), Video.class);
+
+        boolean queued = false;
+        for (Video video : videos) {
+            job.setCursor(video.getId());
+            job.setScanned(job.getScanned() + 1);
+            try {
+                queued = process(job.getType(), video);
+            } catch (Exception e) {
+                log.error("Backfill {} skipped video {}: {}", job.getId(), video.getId(), e.getMessage());
+            }
+            if (queued) {
+                job.setEnqueued(job.getEnqueued() + 1);
+                break;
+            }
+        }
+        if (!queued && videos.size() < scanBatch) {
+            job.setStatus(EBackfillStatus.COMPLETED);
+            job.setCompletedDate(Instant.now());
+            log.info("Backfill {} ({}) done: {} videos, {} queued", job.getId(), job.getType(), job.getScanned(), job.getEnqueued());
+        }
+        jobRepository.save(job);
+    }
+
+    /**
+     * Move the staged renditions of a finished re-encode over the live ones and publish the new master. The new
+     * ladder is recorded only now, until then it has to describe the renditions that are live. Videos that link
+     * their renditions from this one get the new ones too.
+     */
+    public void swapIn(String videoId, Path videoDir, List<Integer> heights, List<LadderRung> ladder, boolean audio) throws IOException {
+        Path stage = videoDir.resolve(STAGE_DIR);
+        List<String> names = heights.stream().map(String::valueOf).collect(Collectors.toCollection(ArrayList::new));
+        if (audio) {
+            names.add(MasterPlaylistService.AUDIO_DIR);
+        }
+        for (String name : names) {
+            replace(videoDir, stage, name);
+        }
+        // renditions the new ladder dropped were encoded the old way and may not fit the new audio layout
+        try (Stream<Path> dirs = Files.list(videoDir)) {
+            for (Path dir : dirs.toList()) {
+                String name = dir.getFileName().toString();
+                if (Files.isDirectory(dir) && name.matches("\\d+") && !names.contains(name)) {
+                    deleteTree(dir);
+                }
+            }
+        }
+        masterPlaylistService.rebuild(videoDir);
+        if (!ladder.isEmpty()) {
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(videoId)),
+                    new Update().set("ladder", ladder), Video.class);
+        }
+        videoService.replaceResolutions(videoId, heights, serverLocation);
+        deleteTree(stage);
+        relinkCopies(videoId, heights);
+    }
+
+    private void relinkCopies(String videoId, List<Integer> heights) throws IOException {
+        Video canonical = videoRepository.findById(videoId).orElse(null);
+        if (canonical == null) return;
+        for (Video copy : contentDedupService.linkedCopies(canonical)) {
+            contentDedupService.relinkRenditions(canonical, copy);
+            masterPlaylistService.rebuild(Path.of(storageBaseDir, "outputs", copy.getUsername(), "videos", copy.getId()));
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(copy.getId())),
+                    new Update().set("ladder", canonical.getLadder()), Video.class);
+            videoService.replaceResolutions(copy.getId(), heights, serverLocation);
+            log.info("Backfill relinked video {} to the new renditions of {}", copy.getId(), videoId);
+        }
+    }
+
+    /**
+     * Queue the work one video needs, false when it needs none.
+     */
+    private boolean process(EBackfillType type, Video video) throws IOException, InterruptedException {
+        if (contentDedupService.isLinkedCopy(video)) {
+            // shares the canonical video's files, it gets that video's new renditions and previews when they are done
+            return false;
+        }
+        Path videoDir = Path.of(storageBaseDir, "outputs", video.getUsername(), "videos", video.getId());
+        Path raw = VideoService.findRawFile(videoDir);
+        if (raw == null) {
+            log.warn("Backfill skips video {}: no source file on this server", video.getId());
+            return false;
+        }
+        MediaInfo mediaInfo = video.getMediaInfo();
+        if (mediaInfo == null) {
+            // uploaded before uploads were probed
+            mediaInfo = FFmpegUtil.probe(raw.toString());
+            video.setMediaInfo(mediaInfo);
+            videoRepository.save(video);
+        }
+
+        if (type == EBackfillType.PREVIEWS) {
+            if (video.getStoryboard() != null && !video.getStoryboard().isEmpty()) {
+                // copies linked before the previews existed have none of their own
+                videoService.sharePreviews(video.getId());
+                return false;
+            }
+            taskPublisherService.publishPreviewTask(video.getId(), raw.toString(),
+                    videoDir.resolve(StoryboardUtil.PREVIEW_DIR).toString(), mediaInfo.getDuration(),
+                    TaskPublisherService.PRIORITY_BACKFILL);
+            return true;
+        }
+
+        List<Integer> planned = VideoService.renditionsFor(mediaInfo.getDisplayHeight());
+        if (planned.isEmpty()) return false;
+        List<LadderRung> ladder = ladderPlannerService.plan(raw.toString(), mediaInfo, planned, video.getId());
+        // the ladder travels with the task, the video keeps describing its live renditions until the swap
+        taskPublisherService.publishBackfillTask(video.getId(), raw.toString(), videoDir.toString(), ladder,
+                mediaInfo.isHasAudio(), videoService.canCopyAudio(mediaInfo), mediaInfo.getDuration());
+        return true;
+    }
+
+    /**
+     * Nothing but backfill wants the node right now.
+     */
+    private boolean isIdle() {
+        if (transcodeSchedulerService.getPendingCount() > 0) return false;
+        if (workerPool.getActiveJobs().get() >= workerPool.getMaxWorkers()) return false;
+        double cpu = ManagementFactory.getPlatformMXBean(com.sun.management.OperatingSystemMXBean.class).getCpuLoad();
+        if (cpu > maxCpu) return false;
+        try {
+            return taskPublisherService.getQueueDepth() == 0;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static void replace(Path videoDir, Path stage, String name) throws IOException {
+        Path staged = stage.resolve(name);
+        if (!Files.exists(staged)) {
+            // moved in by an earlier attempt
+            return;
+        }
+        Path live = videoDir.resolve(name);
+        Path old = videoDir.resolve(STAGE_DIR + "-old-" + name);
+        deleteTree(old);
+        if (Files.exists(live)) {
+            Files.move(live, old);
+        }
+        Files.move(staged, live);
+        deleteTree(old);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ChunkedTranscodeJob;
+import com.example.demo.model.ETranscodeJobStatus;
+import com.example.demo.repository.ChunkedTranscodeJobRepository;
+import com.example.demo.util.FFmpegUtil;
+import com.example.demo.util.FileUtil;
+import com.example.demo.util.MediaPart;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Transcodes long uploads as keyframe-aligned parts so several consumers can work on one video at once.
+ * Every part goes through the regular queue as its own TRANSCODE_PART task; the consumer that finishes the
+ * last part stitches the per-part HLS outputs into the final rendition playlists. Rebuilding the master
+ * playlist is left to the caller.
+ */
+@Slf4j
+@Service
+public class ChunkedTranscodeService {
+
+    private static final String FILE_NAME = "qmh";
+
+    @Value("${icurff.transcode.chunked.part-seconds:120}")
+    private int partSeconds;
+
+    @Autowired
+    private ChunkedTranscodeJobRepository jobRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private TaskPublisherService taskPublisherService;
+
+    @Autowired
+    private EncoderPresetService encoderPresetService;
+
+    public void start(String videoId, Path rawVideoPath, Path outputDir, List<Integer> resolutions) throws IOException {
+        Path workDir = outputDir.resolve("parts");
+        List<MediaPart> parts;
+        try {
+            parts = FFmpegUtil.splitAtKeyframes(rawVideoPath.toString(), workDir.toString(), partSeconds);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Splitting interrupted", e);
+        }
+
+        ChunkedTranscodeJob job = new ChunkedTranscodeJob();
+        job.setVideoId(videoId);
+        job.setOutputDir(outputDir.toString());
+        job.setWorkDir(workDir.toString());
+        job.setResolutions(resolutions);
+        job.setTotalParts(parts.size());
+        // chosen once for the job, parts encoded with different presets would differ visibly when stitched
+        job.setPreset(encoderPresetService.choose());
+        jobRepository.save(job);
+
+        log.info("Video {} split into {} parts for chunked transcoding (job {})", videoId, parts.size(), job.getId());
+        for (MediaPart part : parts) {
+            taskPublisherService.publishPartTranscodeTask(job.getId(), videoId, part.path(),
+                    partOutputDir(workDir, part.index()).toString(), resolutions, part.index(), part.start(),
+                    part.end() - part.start(), job.getPreset());
+        }
+    }
+
+    /**
+     * Record a finished part. Returns the job if this call completed it and stitched the renditions, null otherwise.
+     */
+    public ChunkedTranscodeJob completePart(String jobId, int partIndex) throws IOException {
+        ChunkedTranscodeJob job = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(jobId)),
+                new Update().addToSet("completedParts", partIndex),
+                FindAndModifyOptions.options().returnNew(true),
+                ChunkedTranscodeJob.class);
+        if (job == null) {
+            log.warn("Chunked transcode job {} not found", jobId);
+            return null;
+        }
+        log.info("Job {}: part {} done ({}/{})", jobId, partIndex, job.getCompletedParts().size(), job.getTotalParts());
+        if (job.getCompletedParts().size() < job.getTotalParts()) {
+            return null;
+        }
+
+        // only one consumer may stitch, whichever flips the status first
+        ChunkedTranscodeJob claimed = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("_id").is(jobId).and("status").is(ETranscodeJobStatus.TRANSCODING)),
+                new Update().set("status", ETranscodeJobStatus.STITCHING),
+                FindAndModifyOptions.options().returnNew(true),
+                ChunkedTranscodeJob.class);
+        if (claimed == null) {
+            return null;
+        }
+
+        try {
+            stitch(claimed);
+        } catch (IOException | RuntimeException e) {
+            // release the claim so the retry of this part stitches again; the job only fails once it is dead-lettered
+            mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(jobId).and("status").is(ETranscodeJobStatus.STITCHING)),
+                    new Update().set("status", ETranscodeJobStatus.TRANSCODING),
+                    ChunkedTranscodeJob.class);
+            throw e;
+        }
+        return claimed;
+    }
+
+    public void markFailed(String jobId) {
+        mongoTemplate.updateFirst(
+                Query.query(Criteria.where("_id").is(jobId)),
+                new Update().set("status", ETranscodeJobStatus.FAILED),
+                ChunkedTranscodeJob.class);
+    }
+
+    private void stitch(ChunkedTranscodeJob job) throws IOException {
+        Path outputDir = Path.of(job.getOutputDir());
+        Path workDir = Path.of(job.getWorkDir());
+
+        for (Integer height : job.getResolutions()) {
+            String playlistName = FILE_NAME + "_" + height + "p.m3u8";
+            Path renditionDir = outputDir.resolve(String.valueOf(height));
+            Files.createDirectories(renditionDir);
+
+            StringBuilder entries = new StringBuilder();
+            double maxSegmentDuration = 0;
+            for (int part = 0; part < job.getTotalParts(); part++) {
+                Path partRenditionDir = partOutputDir(workDir, part).resolve(String.valueOf(height));
+                List<String> lines = Files.readAllLines(partRenditionDir.resolve(playlistName), StandardCharsets.UTF_8);
+                for (int i = 0; i < lines.size(); i++) {
+                    String line = lines.get(i).trim();
+                    if (!line.startsWith("#EXTINF:") || i + 1 >= lines.size()) continue;
+
+                    String segment = lines.get(++i).trim();
+                    String duration = line.substring("#EXTINF:".length()).split(",")[0];
+                    maxSegmentDuration = Math.max(maxSegmentDuration, Double.parseDouble(duration));
+                    // segment names carry the part index, so they cannot collide in the final directory
+                    Path source = partRenditionDir.resolve(segment);
+                    Path target = renditionDir.resolve(segment);
+                    // an earlier stitch that failed halfway may have moved it already
+                    if (Files.exists(source) || !Files.exists(target)) {
+                        Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    entries.append(line).append('\n').append(segment).append('\n');
+                }
+            }
+
+            String playlist = "#EXTM3U\n"
+                    + "#EXT-X-VERSION:3\n"
+                    + "#EXT-X-TARGETDURATION:" + (int) Math.ceil(maxSegmentDuration) + "\n"
+                    + "#EXT-X-MEDIA-SEQUENCE:0\n"
+                    + "#EXT-X-PLAYLIST-TYPE:VOD\n"
+                    + entries
+                    + "#EXT-X-ENDLIST\n";
+            // the playlist is what marks the rendition finished, it must never be seen half written
+            FileUtil.writeAtomically(renditionDir.resolve(playlistName), playlist);
+        }
+
+        deleteRecursively(workDir);
+
+        job.setStatus(ETranscodeJobStatus.COMPLETED);
+        jobRepository.save(job);
+        log.info("Chunked transcode job {} stitched for video {}", job.getId(), job.getVideoId());
+    }
+
+    private Path partOutputDir(Path workDir, int partIndex) {
+        return workDir.resolve(String.format(Locale.ROOT, "part_%04d_out", partIndex));
+    }
+
+    private void deleteRecursively(Path dir) {
+        try (var paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException ignored) {
+                    // ignore cleanup errors
+                }
+            });
+        } catch (IOException ignored) {
+            // ignore cleanup errors
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ContentHashIndex;
+import com.example.demo.model.Video;
+import com.example.demo.repository.VideoRepository;
+import com.example.demo.util.StoryboardUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Recognizes re-uploads of a file this server already transcoded.
+ * The SHA-256 of an upload is computed chunk by chunk as the chunks arrive, so it is ready when the last one lands.
+ * Chunks that continue the hashed prefix are hashed from the request stream while they are written; only chunks
+ * that arrive ahead of a gap are read back from disk once the gap is filled.
+ * The same hash verifies the upload against the digest the client declared, so it is kept even with dedup off.
+ * A hit links the canonical video's renditions into the new video's directory with hard links: every video keeps
+ * its own paths, and deleting any of them, the canonical one included, leaves the others intact without copying.
+ */
+@Slf4j
+@Service
+public class ContentDedupService {
+
+    @Value("${icurff.transcode.dedup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${icurff.app.location}")
+    private String serverLocation;
+
+    @Value("${icurff.app.storage}")
+    private String storageBaseDir;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private VideoRepository videoRepository;
+
+    // upload session -> digest over the chunks hashed so far
+    private final Map<String, SessionDigest> digests = new ConcurrentHashMap<>();
+
+    /**
+     * A copy of the session's digest for the bytes of chunk {@code chunkIndex} to be fed into while they are
+     * written, or null if that chunk does not continue the hashed prefix. Hand it to {@link #chunkWritten}.
+     */
+    public MessageDigest continueAt(String sessionId, int chunkIndex) {
+        SessionDigest state = digests.computeIfAbsent(sessionId, key -> new SessionDigest());
+        synchronized (state) {
+            return chunkIndex == state.nextIndex ? copy(state.digest) : null;
+        }
+    }
+
+    /**
+     * Like {@link #continueAt(String, int)} for bytes appended at {@code offset} of a growing upload file.
+     */
+    public MessageDigest continueAtOffset(String sessionId, long offset) {
+        SessionDigest state = digests.computeIfAbsent(sessionId, key -> new SessionDigest());
+        synchronized (state) {
+            return offset == state.hashedBytes ? copy(state.digest) : null;
+        }
+    }
+
+    /**
+     * Feed every chunk that is now contiguous with the hashed prefix into the session's digest.
+     * A chunk is a byte range of a file, either its own chunk file or its slot in the preallocated upload file.
+     * {@code streamed} is the digest from {@link #continueAt} that already saw the chunk's bytes, null if none.
+     * Chunks that arrive ahead of a gap are remembered and read back once the gap is filled.
+     */
+    public void chunkWritten(String sessionId, int chunkIndex, Path file, long offset, long length, MessageDigest streamed) {
+        SessionDigest state = digests.computeIfAbsent(sessionId, key -> new SessionDigest());
+        synchronized (state) {
+            if (chunkIndex < state.nextIndex) return;
+            if (streamed != null && chunkIndex == state.nextIndex) {
+                state.digest = streamed;
+                state.nextIndex++;
+                state.hashedBytes += length;
+            } else {
+                state.pending.put(chunkIndex, new ChunkRange(file, offset, length));
+            }
+            try {
+                ChunkRange next;
+                while ((next = state.pending.remove(state.nextIndex)) != null) {
+                    digest(state.digest, next.file, next.offset, next.length);
+                    state.nextIndex++;
+                    state.hashedBytes += next.length;
+                }
+            } catch (IOException e) {
+                log.warn("Hashing upload {} failed, it will be hashed after the merge: {}", sessionId, e.getMessage());
+                digests.remove(sessionId);
+            }
+        }
+    }
+
+    /**
+     * A chunk's range was overwritten by a resend that was then rejected. If the chunk was hashed already, the
+     * digest no longer matches the file and the upload is hashed after the merge instead.
+     */
+    public void chunkRejected(String sessionId, int chunkIndex) {
+        SessionDigest state = digests.get(sessionId);
+        if (state == null) return;
+        synchronized (state) {
+            if (chunkIndex < state.nextIndex) {
+                digests.remove(sessionId, state);
+            }
+        }
+    }
+
+    /**
+     * Feed bytes appended to the end of a growing upload file, as a tus PATCH does. Appends are sequential by
+     * protocol; one that does not continue the hashed prefix (e.g. after a restart) leaves the upload to be
+     * hashed after the merge. {@code streamed} is the digest from {@link #continueAtOffset} that already saw them.
+     */
+    public void appended(String sessionId, Path file, long offset, long length, MessageDigest streamed) {
+        SessionDigest state = digests.computeIfAbsent(sessionId, key -> new SessionDigest());
+        synchronized (state) {
+            if (offset != state.hashedBytes) return;
+            try {
+                if (streamed != null) {
+                    state.digest = streamed;
+                } else {
+                    digest(state.digest, file, offset, length);
+                }
+                state.hashedBytes += length;
+            } catch (IOException e) {
+                log.warn("Hashing upload {} failed, it will be hashed after the merge: {}", sessionId, e.getMessage());
+                digests.remove(sessionId);
+            }
+        }
+    }
+
+    /**
+     * The content hash of a merged upload. Uses the incremental digest when it covered the whole file and
+     * only re-reads the merged file when it did not, e.g. after a restart in the middle of an upload.
+     */
+    public String finish(String sessionId, Path mergedFile) throws IOException {
+        SessionDigest state = digests.remove(sessionId);
+        if (state != null) {
+            synchronized (state) {
+                if (state.pending.isEmpty() && state.hashedBytes == Files.size(mergedFile)) {
+                    return HexFormat.of().formatHex(state.digest.digest());
+                }
+            }
+        }
+        SessionDigest full = new SessionDigest();
+        digest(full.digest, mergedFile, 0, Files.size(mergedFile));
+        return HexFormat.of().formatHex(full.digest.digest());
+    }
+
+    private void digest(MessageDigest digest, Path file, long offset, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) throw new IOException("Unexpected end of " + file);
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+            }
+        }
+    }
+
+    private static MessageDigest copy(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            // the chunk is read back from disk instead
+            return null;
+        }
+    }
+
+    public void discard(String sessionId) {
+        digests.remove(sessionId);
+    }
+
+    /**
+     * The canonical video for this hash if its renditions are complete and on this server, null otherwise.
+     */
+    public Video findReusable(String hash) {
+        if (!enabled || hash == null) return null;
+        ContentHashIndex index = mongoTemplate.findById(indexId(hash), ContentHashIndex.class);
+        if (index == null) return null;
+        Video canonical = videoRepository.findById(index.getCanonicalVideoId()).orElse(null);
+        if (canonical == null || canonical.getResolutions().isEmpty()) return null;
+        // still transcoding, linking now would miss the renditions that are not done yet
+        if (canonical.getResolutions().size() < canonical.getLadder().size()) return null;
+        if (!Files.isDirectory(videoDir(canonical))) return null;
+        return canonical;
+    }
+
+    /**
+     * Add a video to the references of its hash, the first one becomes canonical.
+     */
+    public void register(String hash, String videoId) {
+        if (!enabled || hash == null) return;
+        mongoTemplate.upsert(
+                Query.query(Criteria.where("_id").is(indexId(hash))),
+                new Update().addToSet("videoIds", videoId)
+                        .setOnInsert("hash", hash)
+                        .setOnInsert("serverLocation", serverLocation)
+                        .setOnInsert("canonicalVideoId", videoId),
+                ContentHashIndex.class);
+    }
+
+    /**
+     * Drop a deleted video from its hash. If it was canonical another reference takes over; its hard links
+     * already hold the data, so nothing has to be copied.
+     */
+    public void release(String videoId) {
+        ContentHashIndex index = mongoTemplate.findAndModify(
+                Query.query(Criteria.where("videoIds").is(videoId).and("serverLocation").is(serverLocation)),
+                new Update().pull("videoIds", videoId),
+                FindAndModifyOptions.options().returnNew(true),
+                ContentHashIndex.class);
+        if (index == null) return;
+        if (index.getVideoIds().isEmpty()) {
+            mongoTemplate.remove(Query.query(Criteria.where("_id").is(index.getId()).and("videoIds").size(0)), ContentHashIndex.class);
+        } else if (videoId.equals(index.getCanonicalVideoId())) {
+            String successor = index.getVideoIds().iterator().next();
+            mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(index.getId()).and("canonicalVideoId").is(videoId)),
+                    new Update().set("canonicalVideoId", successor),
+                    ContentHashIndex.class);
+            log.info("Video {} is now canonical for content {}", successor, index.getHash());
+        }
+    }
+
+    /**
+     * Whether the video shares its renditions with another, canonical video of the same content.
+     */
+    public boolean isLinkedCopy(Video video) {
+        if (video.getContentHash() == null) return false;
+        ContentHashIndex index = mongoTemplate.findById(indexId(video.getContentHash()), ContentHashIndex.class);
+        return index != null && !video.getId().equals(index.getCanonicalVideoId());
+    }
+
+    /**
+     * The videos that link their renditions from {@code canonical}.
+     */
+    public List<Video> linkedCopies(Video canonical) {
+        if (canonical.getContentHash() == null) return List.of();
+        ContentHashIndex index = mongoTemplate.findById(indexId(canonical.getContentHash()), ContentHashIndex.class);
+        if (index == null || !canonical.getId().equals(index.getCanonicalVideoId())) return List.of();
+        return videoRepository.findAllById(index.getVideoIds()).stream()
+                .filter(video -> !video.getId().equals(canonical.getId()))
+                .toList();
+    }
+
+    /**
+     * Replace the renditions of a linked copy with the ones the canonical video has now, after it was re-encoded.
+     * The copy's raw file already holds the same bytes and is left alone.
+     */
+    public void relinkRenditions(Video canonical, Video copy) throws IOException {
+        Path targetDir = videoDir(copy);
+        try (Stream<Path> dirs = Files.list(targetDir)) {
+            for (Path dir : dirs.filter(Files::isDirectory).toList()) {
+                String name = dir.getFileName().toString();
+                if (name.matches("\\d+") || name.equals(MasterPlaylistService.AUDIO_DIR)) {
+                    BackfillService.deleteTree(dir);
+                }
+            }
+        }
+        linkRenditions(canonical, targetDir, null);
+    }
+
+    /**
+     * Link the canonical video's storyboard and hover clip into a linked copy that has none yet.
+     */
+    public void linkPreviews(Video canonical, Video copy) throws IOException {
+        Path sourceDir = videoDir(canonical).resolve(StoryboardUtil.PREVIEW_DIR);
+        Path targetDir = videoDir(copy).resolve(StoryboardUtil.PREVIEW_DIR);
+        try (Stream<Path> files = Files.walk(sourceDir)) {
+            for (Path source : files.filter(Files::isRegularFile).toList()) {
+                link(source, targetDir.resolve(sourceDir.relativize(source)));
+            }
+        }
+    }
+
+    /**
+     * Link everything the canonical video produced into {@code targetDir}. The canonical raw file is linked
+     * over {@code rawFile}, which holds the same bytes, unless it is null. Falls back to copying where hard links
+     * are not possible.
+     */
+    public void linkRenditions(Video canonical, Path targetDir, Path rawFile) throws IOException {
+        Path sourceDir = videoDir(canonical);
+        try (Stream<Path> files = Files.walk(sourceDir)) {
+            for (Path source : files.filter(Files::isRegularFile).toList()) {
+                Path relative = sourceDir.relativize(source);
+                String top = relative.getName(0).toString();
+                // parts and the backfill stage are transient work, raw is handled below
+                if (top.equals("parts") || top.equals("raw") || top.startsWith(BackfillService.STAGE_DIR)) continue;
+                link(source, targetDir.resolve(relative));
+            }
+        }
+        if (rawFile == null) return;
+        try (Stream<Path> raws = Files.list(sourceDir.resolve("raw"))) {
+            List<Path> sourceRaw = raws.filter(Files::isRegularFile).toList();
+            if (sourceRaw.size() == 1) {
+                Files.delete(rawFile);
+                link(sourceRaw.get(0), rawFile);
+            }
+        } catch (IOException e) {
+            log.warn("Keeping the merged raw file of {}: {}", targetDir, e.getMessage());
+        }
+    }
+
+    private void link(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private Path videoDir(Video video) {
+        return Path.of(storageBaseDir, "outputs", video.getUsername(), "videos", video.getId());
+    }
+
+    private String indexId(String hash) {
+        return hash + "@" + serverLocation;
+    }
+
+    private record ChunkRange(Path file, long offset, long length) {
+    }
+
+    private static class SessionDigest {
+        private MessageDigest digest;
+        private int nextIndex;
+        private long hashedBytes;
+        // chunks received ahead of nextIndex
+        private final Map<Integer, ChunkRange> pending = new HashMap<>();
+
+        private SessionDigest() {
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+    }
+}
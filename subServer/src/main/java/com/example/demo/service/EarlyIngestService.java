@@ -0,0 +1,374 @@
+package com.example.demo.service;
+
+import com.example.demo.model.MediaInfo;
+import com.example.demo.util.FFmpegUtil;
+import com.example.demo.util.ProcessSupervisor;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Starts on an upload before its last byte arrives. As soon as the first {@code probe-bytes} are contiguous in the
+ * upload file they are probed. If the container can be read front to back (Matroska/WebM, MPEG-TS, FLV, or MP4/MOV
+ * with the moov atom up front, which is the only way a prefix of one probes at all) the fast-start rendition
+ * is encoded from a pipe that is fed the contiguous prefix as it grows. Finalization adopts that rendition,
+ * finished or still running, instead of queueing it again, so the video is playable right after the upload.
+ * The encode takes an idle worker of the transcode pool and is skipped while all of them are busy.
+ * <p>
+ * Only uploads that land in one file take part, i.e. positional chunk writes and tus.
+ */
+@Slf4j
+@Service
+public class EarlyIngestService {
+    private static final String FILE_NAME = "qmh";
+    private static final int[] LADDER = {1080, 720, 480, 360, 240};
+    private static final Set<String> STREAMABLE_FORMATS = Set.of("matroska", "webm", "mpegts", "flv", "mov", "mp4");
+
+    @Value("${icurff.upload.early.enabled:true}")
+    private boolean enabled;
+
+    // how much of the file has to be contiguous before it is probed; a fast-start MP4 has its moov in here
+    @Value("${icurff.upload.early.probe-bytes:8388608}")
+    private long probeBytes;
+
+    // give up on an early encode when the upload has not grown for this long
+    @Value("${icurff.upload.early.stall-timeout-seconds:300}")
+    private long stallTimeoutSeconds;
+
+    @Value("${icurff.transcode.fast-start.height:360}")
+    private int fastStartHeight;
+
+    @Value("${icurff.app.storage}")
+    private String storageBaseDir;
+
+    @Autowired
+    private TranscodeWorkerPool workerPool;
+
+    @Autowired
+    private EncoderPresetService encoderPresetService;
+
+    private final ThreadPoolTaskExecutor executor;
+
+    private final Map<String, Ingest> ingests = new ConcurrentHashMap<>();
+
+    public EarlyIngestService(@Value("${icurff.upload.early.max-concurrent:2}") int maxConcurrent) {
+        // no queue: an upload that finds every slot taken is simply transcoded after it finished
+        executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(Math.max(1, maxConcurrent));
+        executor.setMaxPoolSize(Math.max(1, maxConcurrent));
+        executor.setQueueCapacity(0);
+        executor.setThreadNamePrefix("early-ingest-");
+        executor.initialize();
+    }
+
+    /**
+     * The first {@code contiguousBytes} of the upload file of a session are on disk.
+     */
+    public void progress(String username, String sessionId, long contiguousBytes, long fileSize) {
+        if (!enabled || fileSize <= 0) return;
+        Ingest ingest = ingests.get(sessionId);
+        if (ingest == null) {
+            if (contiguousBytes < Math.min(probeBytes, fileSize)) return;
+            Path file = Path.of(storageBaseDir, "uploads", username, sessionId, VideoService.ASSEMBLY_FILE);
+            if (!Files.exists(file)) return;
+            Ingest created = new Ingest(sessionId, file, fileSize, earlyDir(sessionId));
+            ingest = ingests.putIfAbsent(sessionId, created);
+            if (ingest == null) {
+                ingest = created;
+                try {
+                    executor.execute(() -> run(created));
+                } catch (TaskRejectedException e) {
+                    log.debug("No slot for an early encode of upload {}", sessionId);
+                    created.state = State.SKIPPED;
+                }
+            }
+        }
+        synchronized (ingest) {
+            if (contiguousBytes > ingest.contiguous) {
+                ingest.contiguous = Math.min(contiguousBytes, ingest.fileSize);
+                ingest.lastGrowth = System.currentTimeMillis();
+                ingest.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Hand the early rendition of a finalized upload over to its video. Returns the height it covers, or null if
+     * there is none for one of the {@code planned} heights. {@code onReady} runs once the rendition is in
+     * {videoDir}/{height}, now or when the encode finishes; {@code onFailed} if the encode fails after all.
+     */
+    public Integer adopt(String sessionId, List<Integer> planned, Path videoDir, IntConsumer onReady, IntConsumer onFailed) {
+        Ingest ingest = ingests.get(sessionId);
+        if (ingest == null) return null;
+        synchronized (ingest) {
+            boolean usable = (ingest.state == State.ENCODING || ingest.state == State.DONE)
+                    && planned.contains(ingest.height);
+            if (!usable) {
+                cancel(sessionId);
+                return null;
+            }
+            ingest.videoDir = videoDir;
+            ingest.onReady = onReady;
+            ingest.onFailed = onFailed;
+            if (ingest.state == State.ENCODING) {
+                log.info("Upload {} adopts its early {}p rendition, still encoding", sessionId, ingest.height);
+                return ingest.height;
+            }
+        }
+        log.info("Upload {} adopts its finished early {}p rendition", sessionId, ingest.height);
+        deliver(ingest, true);
+        return ingest.height;
+    }
+
+    /**
+     * Stop and forget the early work of an upload, e.g. when it was terminated or turned out to be a duplicate.
+     */
+    public void cancel(String sessionId) {
+        Ingest ingest = ingests.remove(sessionId);
+        if (ingest == null) return;
+        synchronized (ingest) {
+            ingest.cancelled = true;
+            ingest.notifyAll();
+        }
+        ProcessSupervisor.cancelByTag(tag(sessionId));
+        deleteQuietly(ingest.dir);
+    }
+
+    private void run(Ingest ingest) {
+        Integer height = probe(ingest);
+        long startedAt;
+        synchronized (ingest) {
+            if (height == null || ingest.cancelled) {
+                if (ingest.state == State.PROBING) ingest.state = State.SKIPPED;
+                return;
+            }
+            startedAt = workerPool.tryJobStarted();
+            if (startedAt < 0) {
+                // the encode would run on top of busy workers; the fast-start task encodes it after the upload
+                log.info("Workers are busy, upload {} is not encoded early", ingest.sessionId);
+                ingest.state = State.SKIPPED;
+                return;
+            }
+            ingest.height = height;
+            ingest.state = State.ENCODING;
+        }
+
+        log.info("Encoding {}p of upload {} while it is still uploading", height, ingest.sessionId);
+        boolean encoded = false;
+        try {
+            // paced by the upload rather than the queue, so the backlog has no say in its preset
+            FFmpegUtil.transcodeVideoFromPipe(stdin -> feed(ingest, stdin),
+                    ingest.dir.resolve(String.valueOf(height)).toString(), String.valueOf(height), FILE_NAME,
+                    workerPool.getThreadsPerJob(), encoderPresetService.getDefaultPreset(), tag(ingest.sessionId), null);
+            encoded = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (!ingest.cancelled) {
+                log.warn("Early encode of upload {} failed: {}", ingest.sessionId, e.getMessage());
+            }
+        } finally {
+            workerPool.jobFinished(startedAt, encoded);
+        }
+
+        boolean adopted;
+        synchronized (ingest) {
+            ingest.state = encoded ? State.DONE : State.FAILED;
+            adopted = ingest.videoDir != null;
+        }
+        if (adopted) {
+            deliver(ingest, encoded);
+        }
+    }
+
+    /**
+     * Probe the contiguous head of the upload. Returns the height to encode early, or null if the container
+     * cannot be streamed or the source is smaller than the lowest rendition.
+     */
+    private Integer probe(Ingest ingest) {
+        Path head = ingest.dir.resolve("head");
+        try {
+            Files.createDirectories(ingest.dir);
+            long length = Math.min(probeBytes, ingest.fileSize);
+            try (FileChannel in = FileChannel.open(ingest.file, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(head, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                long copied = 0;
+                while (copied < length) {
+                    long n = in.transferTo(copied, length - copied, out);
+                    if (n <= 0) break;
+                    copied += n;
+                }
+            }
+            MediaInfo info = FFmpegUtil.probe(head.toString());
+            String format = info.getFormatName() != null ? info.getFormatName() : "";
+            boolean streamable = Stream.of(format.split(",")).anyMatch(STREAMABLE_FORMATS::contains);
+            if (!streamable || info.getDisplayHeight() <= 0) {
+                log.info("Upload {} ({}) cannot be encoded before it is complete", ingest.sessionId, format);
+                return null;
+            }
+            Integer lowest = null;
+            for (int height : LADDER) {
+                if (height > info.getDisplayHeight()) continue;
+                if (height == fastStartHeight) return height;
+                lowest = height;
+            }
+            return lowest;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (IOException e) {
+            // e.g. an MP4 with its moov atom at the end
+            log.info("Head of upload {} does not probe yet, it is transcoded after the upload: {}",
+                    ingest.sessionId, e.getMessage());
+            return null;
+        } finally {
+            try {
+                Files.deleteIfExists(head);
+            } catch (IOException ignored) {
+                // cleaned up with the directory
+            }
+        }
+    }
+
+    /**
+     * Write the upload file to ffmpeg as it becomes contiguous, until all of it was written.
+     */
+    private void feed(Ingest ingest, OutputStream stdin) throws IOException, InterruptedException {
+        WritableByteChannel out = Channels.newChannel(stdin);
+        // the channel stays valid when finalization moves the file
+        try (FileChannel in = FileChannel.open(ingest.file, StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < ingest.fileSize) {
+                long available;
+                synchronized (ingest) {
+                    while ((available = ingest.contiguous) <= position && !ingest.cancelled) {
+                        if (System.currentTimeMillis() - ingest.lastGrowth > stallTimeoutSeconds * 1000) {
+                            throw new IOException("Upload stalled at " + position + " bytes");
+                        }
+                        ingest.wait(1000);
+                    }
+                    if (ingest.cancelled) throw new IOException("Cancelled");
+                }
+                long n = in.transferTo(position, available - position, out);
+                if (n <= 0) throw new IOException("Upload file ended at " + position + " bytes");
+                position += n;
+            }
+        }
+    }
+
+    private void deliver(Ingest ingest, boolean encoded) {
+        ingests.remove(ingest.sessionId, ingest);
+        int height = ingest.height;
+        boolean moved = false;
+        if (encoded && Files.isDirectory(ingest.videoDir)) {
+            try {
+                Files.move(ingest.dir.resolve(String.valueOf(height)), ingest.videoDir.resolve(String.valueOf(height)));
+                moved = true;
+            } catch (IOException e) {
+                log.warn("Could not move the early rendition of upload {}: {}", ingest.sessionId, e.getMessage());
+            }
+        }
+        deleteQuietly(ingest.dir);
+        try {
+            if (moved) {
+                ingest.onReady.accept(height);
+            } else if (Files.isDirectory(ingest.videoDir)) {
+                ingest.onFailed.accept(height);
+            }
+        } catch (RuntimeException e) {
+            log.error("Handing over the early rendition of upload {} failed", ingest.sessionId, e);
+        }
+    }
+
+    /**
+     * Drop early work nobody adopted, e.g. of uploads that were abandoned after the encode finished.
+     */
+    @Scheduled(fixedDelayString = "${icurff.upload.early.sweep-interval-ms:600000}")
+    public void sweep() {
+        long cutoff = System.currentTimeMillis() - Math.max(stallTimeoutSeconds * 1000, 3_600_000L);
+        for (Ingest ingest : List.copyOf(ingests.values())) {
+            boolean idle;
+            synchronized (ingest) {
+                idle = ingest.videoDir == null && ingest.state != State.ENCODING && ingest.lastGrowth < cutoff;
+            }
+            if (idle) {
+                log.info("Dropping early work of abandoned upload {}", ingest.sessionId);
+                cancel(ingest.sessionId);
+            }
+        }
+    }
+
+    private Path earlyDir(String sessionId) {
+        return Path.of(storageBaseDir, "early", sessionId);
+    }
+
+    private static String tag(String sessionId) {
+        return "early-" + sessionId;
+    }
+
+    private static void deleteQuietly(Path dir) {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            log.warn("Could not delete {}: {}", dir, e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (String sessionId : List.copyOf(ingests.keySet())) {
+            cancel(sessionId);
+        }
+        executor.shutdown();
+    }
+
+    private enum State {PROBING, ENCODING, DONE, FAILED, SKIPPED}
+
+    private static class Ingest {
+        private final String sessionId;
+        private final Path file;
+        private final long fileSize;
+        private final Path dir;
+        private volatile State state = State.PROBING;
+        private volatile long contiguous;
+        private volatile long lastGrowth = System.currentTimeMillis();
+        private volatile boolean cancelled;
+        private Integer height;
+        // set on adoption
+        private Path videoDir;
+        private IntConsumer onReady;
+        private IntConsumer onFailed;
+
+        private Ingest(String sessionId, Path file, long fileSize, Path dir) {
+            this.sessionId = sessionId;
+            this.file = file;
+            this.fileSize = fileSize;
+            this.dir = dir;
+        }
+    }
+}
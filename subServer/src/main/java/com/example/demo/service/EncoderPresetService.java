@@ -0,0 +1,167 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Video;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Picks the x264 preset of each encode from how long the current backlog would take to drain. With little
+ * waiting the workers can afford a slow preset and smaller files; when uploads pile up a faster preset ships
+ * slightly bigger files much sooner. The choice stays between the configured bounds and is recorded per rendition.
+ * <p>
+ * The backlog is the scheduler's pending cost over the recent throughput of the workers. Without the scheduler
+ * it falls back to the depth of the task queue times the recent job time.
+ */
+@Slf4j
+@Service
+public class EncoderPresetService {
+    // x264 presets from fastest to slowest
+    private static final List<String> PRESETS = List.of(
+            "ultrafast", "superfast", "veryfast", "faster", "fast", "medium", "slow", "slower", "veryslow");
+    // weight of the newest job in the moving averages
+    private static final double SMOOTHING = 0.2;
+
+    @Value("${icurff.transcode.preset.adaptive:true}")
+    private boolean adaptive;
+
+    @Value("${icurff.transcode.preset.default:medium}")
+    private String defaultPreset;
+
+    @Value("${icurff.transcode.preset.fastest:veryfast}")
+    private String fastestPreset;
+
+    @Value("${icurff.transcode.preset.slowest:slow}")
+    private String slowestPreset;
+
+    // a backlog that drains within this time gets the slowest preset
+    @Value("${icurff.transcode.preset.idle-drain-minutes:5}")
+    private double idleDrainMinutes;
+
+    // a backlog that takes this long or longer gets the fastest preset
+    @Value("${icurff.transcode.preset.busy-drain-minutes:60}")
+    private double busyDrainMinutes;
+
+    @Value("${rabbitmq.queue}")
+    private String queueName;
+
+    @Autowired
+    private TranscodeSchedulerService transcodeSchedulerService;
+
+    @Autowired
+    private TranscodeWorkerPool workerPool;
+
+    @Autowired
+    private TaskPublisherService taskPublisherService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private int fastest;
+    private int slowest;
+    // megapixel-seconds encoded per second by one worker
+    private double throughput;
+    private double jobSeconds;
+
+    @PostConstruct
+    void validate() {
+        fastest = indexOf(fastestPreset);
+        slowest = indexOf(slowestPreset);
+        indexOf(defaultPreset);
+        if (fastest > slowest) {
+            throw new IllegalStateException("icurff.transcode.preset.fastest is slower than .slowest");
+        }
+    }
+
+    public String getDefaultPreset() {
+        return defaultPreset;
+    }
+
+    /**
+     * The preset for a job starting now.
+     */
+    public String choose() {
+        if (!adaptive) return defaultPreset;
+        double drainSeconds = estimatedDrainSeconds();
+        if (drainSeconds < 0) {
+            // nothing measured yet
+            return defaultPreset;
+        }
+        double idle = idleDrainMinutes * 60;
+        double busy = busyDrainMinutes * 60;
+        int index;
+        if (drainSeconds <= idle) {
+            index = slowest;
+        } else if (drainSeconds >= busy) {
+            index = fastest;
+        } else {
+            // each preset step roughly doubles or halves the speed, so step on the log of the drain time
+            double share = Math.log(drainSeconds / idle) / Math.log(busy / idle);
+            index = (int) Math.round(slowest - share * (slowest - fastest));
+        }
+        String preset = PRESETS.get(index);
+        log.debug("Backlog drains in ~{}s, encoding with preset {}", Math.round(drainSeconds), preset);
+        return preset;
+    }
+
+    /**
+     * A finished encode, for the throughput estimate. {@code cost} is in megapixel-seconds, null when unknown.
+     */
+    public synchronized void recordJob(Double cost, long elapsedMillis) {
+        double seconds = Math.max(1, elapsedMillis / 1000.0);
+        jobSeconds = jobSeconds == 0 ? seconds : jobSeconds + SMOOTHING * (seconds - jobSeconds);
+        if (cost != null && cost > 0) {
+            double rate = cost / seconds;
+            throughput = throughput == 0 ? rate : throughput + SMOOTHING * (rate - throughput);
+        }
+    }
+
+    /**
+     * Remember which preset the renditions of a video were encoded with.
+     */
+    public void recordPreset(String videoId, Collection<Integer> heights, String preset) {
+        if (videoId == null || videoId.isBlank() || preset == null || heights.isEmpty()) return;
+        Update update = new Update();
+        for (Integer height : heights) {
+            update.set("renditionPresets." + height, preset);
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(videoId)), update, Video.class);
+    }
+
+    private double estimatedDrainSeconds() {
+        int workers = workerPool.getMaxWorkers();
+        double rate;
+        double perJob;
+        synchronized (this) {
+            rate = throughput;
+            perJob = jobSeconds;
+        }
+        if (transcodeSchedulerService.isEnabled() && rate > 0) {
+            return transcodeSchedulerService.getPendingCost() / (rate * workers);
+        }
+        if (perJob == 0) return -1;
+        try {
+            return taskPublisherService.getQueueDepth() * perJob / workers;
+        } catch (RuntimeException e) {
+            log.warn("Could not read the depth of {}: {}", queueName, e.getMessage());
+            return -1;
+        }
+    }
+
+    private static int indexOf(String preset) {
+        int index = PRESETS.indexOf(preset);
+        if (index < 0) {
+            throw new IllegalStateException("Unknown x264 preset: " + preset);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.demo.service;
+
+import com.example.demo.model.LadderRung;
+import com.example.demo.model.MediaInfo;
+import com.example.demo.util.FFmpegUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the renditions of a video and their rate control from the content instead of using one fixed ladder.
+ * A short CRF encode at a low resolution tells how many bits the content needs; that estimate is scaled to each
+ * rung, clamped to sane bounds and to the source bitrate, and rungs that would cost almost as much as the rung
+ * above them are dropped because they add bytes without adding a distinguishable quality step.
+ */
+@Slf4j
+@Service
+public class LadderPlannerService {
+
+    private static final int CRF = 23;
+    // kbit/s the target bitrate of a rung is clamped into, {min, max}
+    private static final Map<Integer, int[]> BOUNDS = Map.of(
+            1080, new int[]{1500, 6000},
+            720, new int[]{800, 3500},
+            480, new int[]{400, 1800},
+            360, new int[]{250, 1000},
+            240, new int[]{150, 500}
+    );
+    // bits needed grow slower than the pixel count
+    private static final double PIXEL_EXPONENT = 0.75;
+
+    @Value("${icurff.transcode.planner.enabled:true}")
+    private boolean enabled;
+
+    @Value("${icurff.transcode.planner.probe-height:360}")
+    private int probeHeight;
+
+    @Value("${icurff.transcode.planner.probe-seconds:20}")
+    private double probeSeconds;
+
+    @Value("${icurff.transcode.planner.prune-ratio:0.7}")
+    private double pruneRatio;
+
+    @Value("${icurff.transcode.planner.maxrate-factor:1.5}")
+    private double maxrateFactor;
+
+    @Value("${icurff.transcode.planner.bufsize-factor:2.0}")
+    private double bufsizeFactor;
+
+    /**
+     * Plan the ladder for the given candidate heights, highest rung first.
+     * When planning is disabled every candidate is kept with plain CRF.
+     */
+    public List<LadderRung> plan(String videoPath, MediaInfo mediaInfo, List<Integer> heights, String tag) {
+        List<Integer> sorted = heights.stream().sorted(Comparator.reverseOrder()).toList();
+        if (!enabled || sorted.isEmpty()) {
+            return sorted.stream().map(h -> LadderRung.builder().height(h).build()).toList();
+        }
+
+        int sampleHeight = Math.min(probeHeight, sorted.get(0));
+        Long probeKbps = probeComplexity(videoPath, mediaInfo, sampleHeight, tag);
+        long sourceKbps = sourceKbps(mediaInfo);
+
+        List<LadderRung> ladder = new ArrayList<>();
+        for (Integer height : sorted) {
+            int[] bounds = BOUNDS.getOrDefault(height, new int[]{0, Integer.MAX_VALUE});
+            // without a probe fall back to the ceiling of the rung, which still caps runaway CRF peaks
+            double estimate = probeKbps != null
+                    ? probeKbps * Math.pow((double) height / sampleHeight, 2 * PIXEL_EXPONENT)
+                    : bounds[1];
+            long target = Math.round(Math.max(bounds[0], Math.min(bounds[1], estimate)));
+            if (sourceKbps > 0) {
+                // re-encoding never needs more bits than the source already spends
+                target = Math.min(target, sourceKbps);
+            }
+
+            if (!ladder.isEmpty()) {
+                LadderRung above = ladder.get(ladder.size() - 1);
+                if (target >= above.getTargetBitrate() * pruneRatio) {
+                    log.info("Dropping {}p rung: {} kbps is too close to {} kbps of {}p",
+                            height, target, above.getTargetBitrate(), above.getHeight());
+                    continue;
+                }
+            }
+
+            ladder.add(LadderRung.builder()
+                    .height(height)
+                    .targetBitrate((int) target)
+                    .maxrate((int) Math.round(target * maxrateFactor))
+                    .bufsize((int) Math.round(target * bufsizeFactor))
+                    .build());
+        }
+        log.info("Planned ladder (probe {} kbps at {}p, source {} kbps): {}", probeKbps, sampleHeight, sourceKbps, ladder);
+        return ladder;
+    }
+
+    private Long probeComplexity(String videoPath, MediaInfo mediaInfo, int sampleHeight, String tag) {
+        double duration = mediaInfo.getDuration() != null ? mediaInfo.getDuration() : 0;
+        // sample the middle of the video, intros and outros are usually simpler than the content
+        double start = duration > probeSeconds * 2 ? (duration - probeSeconds) / 2 : 0;
+        try {
+            return FFmpegUtil.measureCrfBitrate(videoPath, sampleHeight, CRF, start, probeSeconds, tag);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            log.warn("Complexity probe failed for {}, using the static ladder caps: {}", videoPath, e.getMessage());
+            return null;
+        }
+    }
+
+    private long sourceKbps(MediaInfo mediaInfo) {
+        Long bps = mediaInfo.getVideoBitrate() != null ? mediaInfo.getVideoBitrate() : mediaInfo.getBitrate();
+        return bps != null ? bps / 1000 : 0;
+    }
+}
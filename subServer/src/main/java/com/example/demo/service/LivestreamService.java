@@ -3,6 +3,7 @@ package com.example.demo.service;
 import com.example.demo.model.EVideoPrivacy;
 import com.example.demo.model.LivestreamKey;
 import com.example.demo.model.Livestream;
+import com.example.demo.model.MediaInfo;
 import com.example.demo.repository.LivestreamKeyRepository;
 import com.example.demo.repository.LivestreamRepository;
 import com.example.demo.util.FFmpegUtil;
@@ -110,9 +111,13 @@ public class LivestreamService {
             Files.move(originalPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
             int duration = 0;
             try {
-                duration = FFmpegUtil.getVideoDuration(outputPath.toString());
+                MediaInfo mediaInfo = FFmpegUtil.probe(outputPath.toString());
+                livestream.setMediaInfo(mediaInfo);
+                if (mediaInfo.getDuration() != null) {
+                    duration = (int) Math.round(mediaInfo.getDuration());
+                }
             } catch (Exception e) {
-                log.warn("Failed to get duration for {}", outputPath);
+                log.warn("Failed to probe {}", outputPath);
             }
             livestream.setDvrPath(outputPath.toString());
             livestream.setDuration(duration);
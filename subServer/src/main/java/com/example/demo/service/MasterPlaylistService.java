@@ -0,0 +1,150 @@
+package com.example.demo.service;
+
+import com.example.demo.model.MediaInfo;
+import com.example.demo.util.FFmpegUtil;
+import com.example.demo.util.FileUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds {videoDir}/master.m3u8 from the finished rendition playlists on disk.
+ * BANDWIDTH is the peak segment bitrate and AVERAGE-BANDWIDTH the mean over the whole rendition, both measured
+ * from the segment files; RESOLUTION comes from probing the first segment. Rebuilds of the same video are
+ * serialized and the file is replaced atomically, so players never read a half-written master.
+ * <p>
+ * Video renditions carry no audio. When {videoDir}/audio exists the upload has an audio track: its single
+ * rendition is published as the EXT-X-MEDIA group every variant references plus an audio-only variant, and the
+ * video variants are held back until it is finished so nobody starts a silent stream.
+ */
+@Slf4j
+@Service
+public class MasterPlaylistService {
+    private static final String FILE_NAME = "qmh";
+    private static final int[] LADDER = {1080, 720, 480, 360, 240};
+    public static final String AUDIO_DIR = "audio";
+    private static final String AUDIO_GROUP = "aud";
+
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+
+    public void rebuild(Path videoDir) throws IOException {
+        Object lock = locks.computeIfAbsent(videoDir.toAbsolutePath().normalize().toString(), key -> new Object());
+        synchronized (lock) {
+            StringBuilder master = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n");
+            String audioUri = AUDIO_DIR + "/" + FILE_NAME + "_audio.m3u8";
+            boolean hasAudio = Files.isDirectory(videoDir.resolve(AUDIO_DIR));
+            RenditionStats audio = hasAudio ? measure(videoDir.resolve(audioUri), false) : null;
+            if (hasAudio && audio == null) {
+                FileUtil.writeAtomically(videoDir.resolve("master.m3u8"), master.toString());
+                return;
+            }
+            if (audio != null) {
+                master.append("#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"").append(AUDIO_GROUP)
+                        .append("\",NAME=\"Audio\",DEFAULT=YES,AUTOSELECT=YES,URI=\"").append(audioUri).append("\"\n");
+            }
+
+            boolean anyVideo = false;
+            for (int height : LADDER) {
+                Path playlist = videoDir.resolve(String.valueOf(height)).resolve(FILE_NAME + "_" + height + "p.m3u8");
+                RenditionStats stats = measure(playlist, true);
+                if (stats == null) continue;
+
+                // BANDWIDTH covers everything the variant plays, the audio group included
+                long peak = stats.peakBitrate + (audio != null ? audio.peakBitrate : 0);
+                long average = stats.averageBitrate + (audio != null ? audio.averageBitrate : 0);
+                master.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(peak)
+                        .append(",AVERAGE-BANDWIDTH=").append(average);
+                if (stats.width > 0 && stats.height > 0) {
+                    master.append(",RESOLUTION=").append(stats.width).append('x').append(stats.height);
+                }
+                if (audio != null) {
+                    master.append(",AUDIO=\"").append(AUDIO_GROUP).append('"');
+                }
+                master.append(",NAME=\"").append(height).append("p\"\n")
+                        .append(height).append('/').append(playlist.getFileName()).append('\n');
+                anyVideo = true;
+            }
+            if (audio != null && anyVideo) {
+                // last resort for very weak connections, listed last so players never start on it
+                master.append("#EXT-X-STREAM-INF:BANDWIDTH=").append(audio.peakBitrate)
+                        .append(",AVERAGE-BANDWIDTH=").append(audio.averageBitrate)
+                        .append(",CODECS=\"mp4a.40.2\",AUDIO=\"").append(AUDIO_GROUP).append("\",NAME=\"audio\"\n")
+                        .append(audioUri).append('\n');
+            }
+            FileUtil.writeAtomically(videoDir.resolve("master.m3u8"), master.toString());
+        }
+    }
+
+    /**
+     * Bitrates and output size of a finished rendition, or null if the playlist is missing or still being written.
+     */
+    private RenditionStats measure(Path playlist, boolean probeDimensions) throws IOException {
+        if (!isFinished(playlist)) return null;
+        List<String> lines = Files.readAllLines(playlist, StandardCharsets.UTF_8);
+
+        Path dir = playlist.getParent();
+        long totalBytes = 0;
+        double totalSeconds = 0;
+        long peak = 0;
+        Path firstSegment = null;
+        for (int i = 0; i < lines.size() - 1; i++) {
+            String line = lines.get(i).trim();
+            if (!line.startsWith("#EXTINF:")) continue;
+
+            double seconds = Double.parseDouble(line.substring("#EXTINF:".length()).split(",")[0]);
+            Path segment = dir.resolve(lines.get(++i).trim());
+            if (!Files.exists(segment)) {
+                log.warn("Rendition {} references missing segment {}", playlist, segment.getFileName());
+                return null;
+            }
+            long bytes = Files.size(segment);
+            if (firstSegment == null) firstSegment = segment;
+            totalBytes += bytes;
+            totalSeconds += seconds;
+            if (seconds > 0) {
+                peak = Math.max(peak, Math.round(bytes * 8 / seconds));
+            }
+        }
+        if (firstSegment == null || totalSeconds <= 0) return null;
+
+        RenditionStats stats = new RenditionStats();
+        stats.peakBitrate = peak;
+        stats.averageBitrate = Math.round(totalBytes * 8 / totalSeconds);
+        if (!probeDimensions) return stats;
+        try {
+            MediaInfo info = FFmpegUtil.probe(firstSegment.toString());
+            stats.width = info.getDisplayWidth();
+            stats.height = info.getDisplayHeight();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Probing interrupted", e);
+        } catch (IOException e) {
+            log.warn("Could not probe {} for its dimensions: {}", firstSegment, e.getMessage());
+        }
+        return stats;
+    }
+
+    /**
+     * Whether ffmpeg finished writing this playlist; an interrupted encode never writes the ENDLIST tag.
+     */
+    public boolean isFinished(Path playlist) throws IOException {
+        if (!Files.exists(playlist)) return false;
+        try (var lines = Files.lines(playlist, StandardCharsets.UTF_8)) {
+            return lines.anyMatch(line -> line.trim().equals("#EXT-X-ENDLIST"));
+        }
+    }
+
+    private static class RenditionStats {
+        private long peakBitrate;
+        private long averageBitrate;
+        private int width;
+        private int height;
+    }
+}
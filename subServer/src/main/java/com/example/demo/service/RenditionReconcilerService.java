@@ -0,0 +1,365 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ChunkedTranscodeJob;
+import com.example.demo.model.EVideoResolution;
+import com.example.demo.model.ETranscodeJobStatus;
+import com.example.demo.model.LadderRung;
+import com.example.demo.model.MediaInfo;
+import com.example.demo.model.ReconcileAttempts;
+import com.example.demo.model.ScheduledTask;
+import com.example.demo.model.TaskInFlight;
+import com.example.demo.model.Video;
+import com.example.demo.repository.VideoRepository;
+import com.example.demo.util.ProcessSupervisor;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Brings the rendition state in Mongo back in line with storage/outputs after a crash. Every video directory is
+ * checked on its own, in parallel: a rendition counts only if its playlist is finished and every segment it lists
+ * is on disk, anything else is deleted as a partial output. Renditions of the video's ladder that are missing are
+ * queued again, a limited number of times each, and {@code resolutions}/{@code server_locations} are set to what
+ * is actually there.
+ * <p>
+ * Videos with work in flight are left alone: a live ffmpeg process, a task waiting in the scheduler, a published
+ * task no consumer is done with, or any file written within the grace period. A chunked job that got past all of
+ * these is dead and is replaced by one task.
+ */
+@Slf4j
+@Service
+public class RenditionReconcilerService {
+    private static final String FILE_NAME = "qmh";
+    // key of the audio rendition in ReconcileAttempts
+    private static final String AUDIO = "audio";
+
+    @Value("${icurff.reconcile.enabled:true}")
+    private boolean enabled;
+
+    // files younger than this may belong to a task that is still running or about to be retried
+    @Value("${icurff.reconcile.grace-minutes:30}")
+    private long graceMinutes;
+
+    // requeues of one rendition before it is left alone, each already went through all task retries
+    @Value("${icurff.reconcile.max-attempts:3}")
+    private int maxAttempts;
+
+    // an in-flight marker this old belongs to a task that was lost, e.g. with a purged queue
+    @Value("${icurff.reconcile.in-flight-hours:24}")
+    private long inFlightHours;
+
+    @Value("${icurff.app.storage}")
+    private String storageBaseDir;
+
+    @Value("${icurff.app.location}")
+    private String serverLocation;
+
+    @Autowired
+    private VideoRepository videoRepository;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private VideoService videoService;
+
+    @Autowired
+    private MasterPlaylistService masterPlaylistService;
+
+    @Autowired
+    private TaskPublisherService taskPublisherService;
+
+    @Autowired
+    private ChunkedTranscodeService chunkedTranscodeService;
+
+    private final ThreadPoolTaskExecutor executor;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public RenditionReconcilerService(@Value("${icurff.reconcile.threads:4}") int threads) {
+        executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(Math.max(1, threads));
+        executor.setMaxPoolSize(Math.max(1, threads));
+        executor.setThreadNamePrefix("reconcile-");
+        executor.initialize();
+    }
+
+    /**
+     * Shortly after startup, then periodically. Only lists the video directories and hands them to the pool, so
+     * the shared scheduler thread is not held up by a large storage tree.
+     */
+    @Scheduled(initialDelayString = "${icurff.reconcile.initial-delay-ms:60000}",
+            fixedDelayString = "${icurff.reconcile.interval-ms:3600000}")
+    public void reconcile() {
+        if (!enabled || !running.compareAndSet(false, true)) return;
+        List<Path> videoDirs;
+        try {
+            videoDirs = listVideoDirs();
+        } catch (IOException e) {
+            log.error("Could not list the storage tree: {}", e.getMessage());
+            running.set(false);
+            return;
+        }
+        if (videoDirs.isEmpty()) {
+            running.set(false);
+            return;
+        }
+        long stale = mongoTemplate.remove(Query.query(Criteria.where("createdDate").lt(inFlightCutoff())),
+                TaskInFlight.class).getDeletedCount();
+        if (stale > 0) {
+            log.warn("Dropped {} in-flight markers older than {} hours", stale, inFlightHours);
+        }
+        Instant startedAt = Instant.now();
+        AtomicInteger remaining = new AtomicInteger(videoDirs.size());
+        AtomicInteger repaired = new AtomicInteger();
+        for (Path videoDir : videoDirs) {
+            executor.execute(() -> {
+                try {
+                    if (reconcileVideo(videoDir)) repaired.incrementAndGet();
+                } catch (Exception e) {
+                    log.error("Reconciling {} failed: {}", videoDir, e.getMessage());
+                } finally {
+                    if (remaining.decrementAndGet() == 0) {
+                        log.info("Reconciled {} videos in {} ms, {} repaired", videoDirs.size(),
+                                Duration.between(startedAt, Instant.now()).toMillis(), repaired.get());
+                        running.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns whether anything had to be repaired.
+     */
+    private boolean reconcileVideo(Path videoDir) throws IOException {
+        String videoId = videoDir.getFileName().toString();
+        Video video = videoRepository.findById(videoId).orElse(null);
+        if (video == null) {
+            log.warn("No video document for {}, leaving the directory alone", videoDir);
+            return false;
+        }
+        if (isBusy(videoId, videoDir)) return false;
+
+        boolean repaired = false;
+        ChunkedTranscodeJob chunkedJob = mongoTemplate.findOne(Query.query(Criteria.where("videoId").is(videoId)
+                .and("status").in(ETranscodeJobStatus.TRANSCODING, ETranscodeJobStatus.STITCHING)), ChunkedTranscodeJob.class);
+        if (chunkedJob != null) {
+            // no part ran or waited within the grace period: the job died with the process that drove it
+            log.warn("Chunked job {} of video {} stalled, requeueing its renditions as one task", chunkedJob.getId(), videoId);
+            chunkedTranscodeService.markFailed(chunkedJob.getId());
+            repaired = true;
+        }
+        // scratch space of chunked jobs and backfills, nothing is working in it any more
+        for (String scratch : List.of("parts", BackfillService.STAGE_DIR)) {
+            Path dir = videoDir.resolve(scratch);
+            if (Files.exists(dir)) {
+                BackfillService.deleteTree(dir);
+                repaired = true;
+            }
+        }
+        try (Stream<Path> dirs = Files.list(videoDir)) {
+            for (Path dir : dirs.filter(path -> path.getFileName().toString().startsWith(BackfillService.STAGE_DIR + "-")).toList()) {
+                BackfillService.deleteTree(dir);
+                repaired = true;
+            }
+        }
+
+        Set<Integer> finished = new TreeSet<>();
+        try (Stream<Path> dirs = Files.list(videoDir)) {
+            for (Path dir : dirs.filter(Files::isDirectory).toList()) {
+                String name = dir.getFileName().toString();
+                if (!name.matches("\\d+")) continue;
+                int height = Integer.parseInt(name);
+                if (verify(dir, FILE_NAME + "_" + height + "p.m3u8")) {
+                    finished.add(height);
+                } else {
+                    log.warn("Deleting partial rendition {}", dir);
+                    BackfillService.deleteTree(dir);
+                    repaired = true;
+                }
+            }
+        }
+
+        MediaInfo mediaInfo = video.getMediaInfo();
+        Path raw = VideoService.findRawFile(videoDir);
+        ReconcileAttempts attempts = mongoTemplate.findById(videoId, ReconcileAttempts.class);
+        Map<String, Integer> tried = attempts != null ? attempts.getAttempts() : Map.of();
+        Path audioDir = videoDir.resolve(MasterPlaylistService.AUDIO_DIR);
+        boolean audioPartial = Files.isDirectory(audioDir) && !verify(audioDir, FILE_NAME + "_audio.m3u8");
+        // the directory stays, it holds the video variants back until the audio is redone
+        if (audioPartial && tried.getOrDefault(AUDIO, 0) >= maxAttempts) {
+            log.warn("Audio rendition of {} is still partial after {} requeues, leaving it", videoId, maxAttempts);
+        } else if (audioPartial) {
+            log.warn("Audio rendition of {} is partial, requeueing it", videoId);
+            clear(audioDir);
+            if (raw != null && mediaInfo != null) {
+                taskPublisherService.publishAudioTask(videoId, raw.toString(), audioDir.toString(),
+                        videoService.canCopyAudio(mediaInfo), mediaInfo.getDuration());
+                countAttempts(videoId, List.of(AUDIO));
+            }
+            repaired = true;
+        }
+
+        if (mediaInfo != null) {
+            List<Integer> expected = !video.getLadder().isEmpty()
+                    ? video.getLadder().stream().map(LadderRung::getHeight).toList()
+                    : VideoService.renditionsFor(mediaInfo.getDisplayHeight());
+            List<Integer> missing = expected.stream().filter(height -> !finished.contains(height)).toList();
+            if (!missing.isEmpty()) {
+                if (raw == null) {
+                    log.warn("Video {} is missing {} but its source is gone", videoId, missing);
+                } else {
+                    List<Integer> requeue = missing.stream()
+                            .filter(height -> tried.getOrDefault(String.valueOf(height), 0) < maxAttempts)
+                            .toList();
+                    if (requeue.size() < missing.size()) {
+                        log.warn("Video {} is still missing {} after {} requeues, leaving them", videoId,
+                                missing.stream().filter(height -> !requeue.contains(height)).toList(), maxAttempts);
+                    }
+                    if (!requeue.isEmpty()) {
+                        log.warn("Video {} is missing {}, requeueing", videoId, requeue);
+                        videoService.requeueRenditions(videoId, raw, videoDir, requeue, mediaInfo);
+                        countAttempts(videoId, requeue.stream().map(String::valueOf).toList());
+                        repaired = true;
+                    }
+                }
+            }
+        }
+        // renditions that made it after all start over should they go missing again
+        List<String> recovered = tried.keySet().stream()
+                .filter(key -> key.equals(AUDIO) ? !audioPartial : finished.contains(Integer.valueOf(key)))
+                .toList();
+        if (!recovered.isEmpty()) {
+            Update forget = new Update();
+            recovered.forEach(key -> forget.unset("attempts." + key));
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(videoId)), forget, ReconcileAttempts.class);
+        }
+
+        Set<Integer> recorded = video.getResolutions().stream().map(EVideoResolution::getValue).collect(Collectors.toSet());
+        boolean listed = video.getServer_locations().contains(serverLocation);
+        if (!recorded.equals(finished) || listed == finished.isEmpty()) {
+            log.warn("Video {} lists {} on disk {}, fixing", videoId, recorded, finished);
+            videoService.replaceResolutions(videoId, finished, serverLocation);
+            repaired = true;
+        }
+        if (repaired) {
+            masterPlaylistService.rebuild(videoDir);
+        }
+        return repaired;
+    }
+
+    /**
+     * A finished playlist whose segments are all there. Files the playlist does not list are leftovers of an
+     * earlier attempt and are removed.
+     */
+    private boolean verify(Path renditionDir, String playlistName) throws IOException {
+        Path playlist = renditionDir.resolve(playlistName);
+        if (!masterPlaylistService.isFinished(playlist)) return false;
+        Set<String> segments = new HashSet<>();
+        for (String line : Files.readAllLines(playlist, StandardCharsets.UTF_8)) {
+            String segment = line.trim();
+            if (segment.isEmpty() || segment.startsWith("#")) continue;
+            Path file = renditionDir.resolve(segment);
+            if (!Files.isRegularFile(file) || Files.size(file) == 0) return false;
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) return false;
+        try (Stream<Path> files = Files.list(renditionDir)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (!name.equals(playlistName) && !segments.contains(name) && Files.isRegularFile(file)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isBusy(String videoId, Path videoDir) throws IOException {
+        if (ProcessSupervisor.list().stream().anyMatch(process -> videoId.equals(process.tag()))) return true;
+        if (mongoTemplate.exists(Query.query(Criteria.where("videoId").is(videoId)), ScheduledTask.class)) return true;
+        // fast-start, audio, remux and backfill tasks skip the scheduler, and everything does when it is off
+        if (mongoTemplate.exists(Query.query(Criteria.where("videoId").is(videoId)
+                .and("createdDate").gte(inFlightCutoff())), TaskInFlight.class)) return true;
+        FileTime cutoff = FileTime.from(Instant.now().minus(Duration.ofMinutes(graceMinutes)));
+        try (Stream<Path> paths = Files.walk(videoDir)) {
+            return paths.anyMatch(path -> {
+                try {
+                    return Files.getLastModifiedTime(path).compareTo(cutoff) > 0;
+                } catch (IOException e) {
+                    // deleted while walking, someone is working here
+                    return true;
+                }
+            });
+        }
+    }
+
+    private void countAttempts(String videoId, List<String> keys) {
+        Update update = new Update();
+        keys.forEach(key -> update.inc("attempts." + key, 1));
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(videoId)), update, ReconcileAttempts.class);
+    }
+
+    private Instant inFlightCutoff() {
+        return Instant.now().minus(Duration.ofHours(inFlightHours));
+    }
+
+    /**
+     * storage/outputs/{user}/videos/{id}
+     */
+    private List<Path> listVideoDirs() throws IOException {
+        Path outputs = Path.of(storageBaseDir, "outputs");
+        List<Path> videoDirs = new ArrayList<>();
+        if (!Files.isDirectory(outputs)) return videoDirs;
+        try (Stream<Path> users = Files.list(outputs)) {
+            for (Path user : users.filter(Files::isDirectory).toList()) {
+                Path videos = user.resolve("videos");
+                if (!Files.isDirectory(videos)) continue;
+                try (Stream<Path> dirs = Files.list(videos)) {
+                    dirs.filter(Files::isDirectory).forEach(videoDirs::add);
+                }
+            }
+        }
+        return videoDirs;
+    }
+
+    private static void clear(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                BackfillService.deleteTree(file);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
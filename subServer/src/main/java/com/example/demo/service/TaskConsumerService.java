@@ -1,6 +1,13 @@
 package com.example.demo.service;
 
+import com.example.demo.model.ChunkedTranscodeJob;
+import com.example.demo.model.LadderRung;
+import com.example.demo.repository.VideoRepository;
+import com.example.demo.util.FFmpegProgress;
 import com.example.demo.util.FFmpegUtil;
+import com.example.demo.util.LadderTranscodeOptions;
+import com.example.demo.util.ProcessSupervisor;
+import com.example.demo.util.StoryboardUtil;
 import com.rabbitmq.client.Channel;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
@@ -9,8 +16,14 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Service
 public class TaskConsumerService {
@@ -18,12 +31,44 @@ public class TaskConsumerService {
     @Autowired
     private VideoService videoService;
 
+    @Autowired
+    private TranscodeWorkerPool workerPool;
+
+    @Autowired
+    private ChunkedTranscodeService chunkedTranscodeService;
+
+    @Autowired
+    private TranscodeProgressService transcodeProgressService;
+
+    @Autowired
+    private MasterPlaylistService masterPlaylistService;
+
+    @Autowired
+    private TaskPublisherService taskPublisherService;
+
+    @Autowired
+    private VideoRepository videoRepository;
+
+    @Autowired
+    private TranscodeSchedulerService transcodeSchedulerService;
+
+    @Autowired
+    private EncoderPresetService encoderPresetService;
+
+    @Autowired
+    private BackfillService backfillService;
+
     @Value("${icurff.app.location}")
     private String serverLocation;
 
+    private static final String FILE_NAME = "qmh";
+
     @RabbitListener(queues = "${rabbitmq.queue}", containerFactory = "rabbitListenerContainerFactory")
     public void consumeTask(Map<String, Object> task, Channel channel, Message message) throws IOException {
-//        Long tag = message.getMessageProperties().getDeliveryTag();
+        long tag = message.getMessageProperties().getDeliveryTag();
+        long startedAt = workerPool.jobStarted();
+        boolean success = false;
+        Exception failure = null;
         try {
             System.out.println("=== RECEIVED TASK ===");
             System.out.println("Task content: " + task);
@@ -33,19 +78,87 @@ public class TaskConsumerService {
 
             if (normalizedAction.equals("DELETE") || normalizedAction.equals("DELETE_VIDEO")) {
                 handleDeleteTask(task);
-                return;
+            } else if (normalizedAction.equals("TRANSCODE_LADDER")) {
+                handleLadderTranscodeTask(task);
+            } else if (normalizedAction.equals("TRANSCODE_PART")) {
+                handlePartTranscodeTask(task);
+            } else if (normalizedAction.equals("REMUX")) {
+                handleRemuxTask(task);
+            } else if (normalizedAction.equals("TRANSCODE_AUDIO")) {
+                handleAudioTask(task);
+            } else if (normalizedAction.equals("PREVIEWS")) {
+                handlePreviewTask(task);
+            } else if (normalizedAction.equals("BACKFILL_REENCODE")) {
+                handleBackfillTask(task);
+            } else {
+                handleTranscodeTask(task);
             }
-
-            handleTranscodeTask(task);
-
-//            channel.basicAck(tag, false);
+            success = true;
         } catch (Exception e) {
             System.out.println("Error: " + e.getMessage());
             e.printStackTrace();
-//            channel.basicNack(tag, false, false);
+            failure = e;
+        } finally {
+            workerPool.jobFinished(startedAt, success);
+        }
+
+        if (success) {
+            channel.basicAck(tag, false);
+            taskPublisherService.settled(task);
+        } else if (Thread.currentThread().isInterrupted() || failure.getCause() instanceof InterruptedException) {
+            // shutting down, not the task's fault: hand it back untouched for the next consumer
+            channel.basicNack(tag, false, true);
+            return;
+        } else if (isObsolete(task)) {
+            System.out.println("Dropping failed task of a video that no longer exists: " + task);
+            channel.basicAck(tag, false);
+            taskPublisherService.settled(task);
+        } else {
+            try {
+                if (!taskPublisherService.retryOrDeadLetter(message, failure.toString())) {
+                    deadLettered(task);
+                }
+                channel.basicAck(tag, false);
+            } catch (RuntimeException e) {
+                System.err.println("Could not reschedule task, returning it to the queue: " + e.getMessage());
+                channel.basicNack(tag, false, true);
+                return;
+            }
+        }
+        // the worker is free again; a retry comes back through the delay queue without holding a slot
+        transcodeSchedulerService.finished(getAsString(task, TranscodeSchedulerService.TASK_ID));
+    }
+
+    /**
+     * A failed task whose video was deleted meanwhile, retrying it would only fail again.
+     */
+    private boolean isObsolete(Map<String, Object> task) {
+        String videoId = getAsString(task, "videoId");
+        return videoId != null && !videoId.isBlank() && !videoRepository.existsById(videoId);
+    }
+
+    private void deadLettered(Map<String, Object> task) {
+        taskPublisherService.settled(task);
+        if ("TRANSCODE_PART".equalsIgnoreCase(String.valueOf(task.get("action")))) {
+            // a part that can never be encoded leaves the whole job without its renditions
+            chunkedTranscodeService.markFailed(getAsString(task, "jobId"));
         }
+    }
 
+    /**
+     * Renditions are the idempotency keys of the tasks: a redelivered task whose output playlist is already
+     * complete on disk skips the encode and only repeats the cheap bookkeeping after it.
+     */
+    private boolean isDone(Path playlist) throws IOException {
+        if (masterPlaylistService.isFinished(playlist)) {
+            System.out.println("Already done, skipping: " + playlist);
+            return true;
+        }
+        return false;
+    }
 
+    private static Path renditionPlaylist(Path renditionDir, int height) {
+        return renditionDir.resolve(FILE_NAME + "_" + height + "p.m3u8");
     }
 
     private void handleTranscodeTask(Map<String, Object> task) throws IOException {
@@ -64,13 +177,29 @@ public class TaskConsumerService {
             System.err.println("This means the application is using old compiled code. Please rebuild and restart!");
         }
 
-        try {
-            FFmpegUtil.transcodeVideo(videoPath, outputDir, resolution, "qmh");
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new RuntimeException("Transcoding interrupted", e);
+        if (!isDone(renditionPlaylist(Path.of(outputDir), Integer.parseInt(resolution)))) {
+            Consumer<FFmpegProgress> progress = transcodeProgressService.track(
+                    videoId, resolution, List.of(Integer.parseInt(resolution)), null, getAsDouble(task, "duration"));
+            boolean transcoded = false;
+            String preset = encoderPresetService.choose();
+            long startedAt = System.currentTimeMillis();
+            try {
+                LadderRung rung = videoService.getLadder(videoId).get(Integer.parseInt(resolution));
+                FFmpegUtil.transcodeVideo(videoPath, outputDir, resolution, FILE_NAME, workerPool.getThreadsPerJob(),
+                        preset, rung, videoId, progress);
+                transcoded = true;
+                encoderPresetService.recordJob(getAsDouble(task, "cost"), System.currentTimeMillis() - startedAt);
+                encoderPresetService.recordPreset(videoId, List.of(Integer.parseInt(resolution)), preset);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Transcoding interrupted", e);
+            } finally {
+                transcodeProgressService.finish(videoId, resolution, transcoded);
+            }
         }
 
+        masterPlaylistService.rebuild(Path.of(outputDir).getParent());
+
         if (videoId != null && !videoId.isEmpty()) {
             System.out.println("Calling updateVideoResolutionAndServer...");
             videoService.updateVideoResolutionAndServer(videoId, Integer.parseInt(resolution), serverLocation);
@@ -79,6 +208,264 @@ public class TaskConsumerService {
         }
     }
 
+    private void handleLadderTranscodeTask(Map<String, Object> task) throws IOException {
+        String videoId = getAsString(task, "videoId");
+        String videoPath = getAsString(task, "videoPath");
+        String outputDir = getAsString(task, "outputDir");
+        List<Integer> heights = getAsIntList(task, "resolutions");
+        String previewDir = getAsString(task, "previewDir");
+
+        if (heights.isEmpty()) {
+            System.err.println("Ladder task has no resolutions: " + task);
+            return;
+        }
+
+        // after a redelivery only the renditions that did not finish last time are encoded
+        List<Integer> pending = new ArrayList<>();
+        for (Integer height : heights) {
+            if (!isDone(renditionPlaylist(Path.of(outputDir, String.valueOf(height)), height))) pending.add(height);
+        }
+        boolean previewsPending = previewDir != null && !Files.exists(Path.of(previewDir, StoryboardUtil.VTT_NAME));
+        if (pending.isEmpty() && previewsPending) {
+            generatePreviews(videoId, getAsString(task, "videoPath"), previewDir, getAsDouble(task, "duration"));
+        } else if (!pending.isEmpty()) {
+            Consumer<FFmpegProgress> progress = transcodeProgressService.track(
+                    videoId, "ladder", pending, null, getAsDouble(task, "duration"));
+            boolean transcoded = false;
+            String preset = encoderPresetService.choose();
+            long startedAt = System.currentTimeMillis();
+            try {
+                FFmpegUtil.transcodeLadder(LadderTranscodeOptions.builder()
+                        .videoPath(videoPath)
+                        .outputDir(outputDir)
+                        .heights(pending)
+                        .rungs(videoService.getLadder(videoId))
+                        .threads(workerPool.getThreadsPerJob())
+                        .preset(preset)
+                        .previewDir(previewsPending ? previewDir : null)
+                        .duration(getAsDouble(task, "duration"))
+                        .tag(videoId)
+                        .progressListener(progress)
+                        .build());
+                transcoded = true;
+                // the task's cost covers every rendition, only a full run is a fair sample
+                encoderPresetService.recordJob(pending.size() == heights.size() ? getAsDouble(task, "cost") : null,
+                        System.currentTimeMillis() - startedAt);
+                encoderPresetService.recordPreset(videoId, pending, preset);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Ladder transcoding interrupted", e);
+            } finally {
+                transcodeProgressService.finish(videoId, "ladder", transcoded);
+            }
+        }
+
+        masterPlaylistService.rebuild(Path.of(outputDir));
+
+        if (videoId == null || videoId.isEmpty()) {
+            System.err.println("SKIPPING database update due to missing videoId");
+            return;
+        }
+        for (Integer height : heights) {
+            videoService.updateVideoResolutionAndServer(videoId, height, serverLocation);
+        }
+        if (previewDir != null) {
+            videoService.updatePreviews(videoId);
+        }
+    }
+
+    private void handlePreviewTask(Map<String, Object> task) throws IOException {
+        String videoId = getAsString(task, "videoId");
+        String previewDir = getAsString(task, "previewDir");
+
+        if (!Files.exists(Path.of(previewDir, StoryboardUtil.VTT_NAME))) {
+            generatePreviews(videoId, getAsString(task, "videoPath"), previewDir, getAsDouble(task, "duration"));
+        }
+        videoService.updatePreviews(videoId);
+        videoService.sharePreviews(videoId);
+    }
+
+    private void generatePreviews(String videoId, String videoPath, String previewDir, Double duration) throws IOException {
+        Consumer<FFmpegProgress> progress = transcodeProgressService.track(videoId, "previews", List.of(), null, duration);
+        boolean generated = false;
+        try {
+            FFmpegUtil.generatePreviews(videoPath, previewDir, duration, videoId, progress);
+            generated = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Preview generation interrupted", e);
+        } finally {
+            transcodeProgressService.finish(videoId, "previews", generated);
+        }
+    }
+
+    private void handleRemuxTask(Map<String, Object> task) throws IOException {
+        String videoId = getAsString(task, "videoId");
+        String outputDir = getAsString(task, "outputDir");
+        int resolution = Integer.parseInt(getAsString(task, "resolution"));
+
+        if (!isDone(renditionPlaylist(Path.of(outputDir), resolution))) {
+            String job = "remux-" + resolution;
+            Consumer<FFmpegProgress> progress = transcodeProgressService.track(
+                    videoId, job, List.of(resolution), null, getAsDouble(task, "duration"));
+            boolean remuxed = false;
+            try {
+                FFmpegUtil.remuxToHls(getAsString(task, "videoPath"), outputDir, resolution, FILE_NAME, videoId, progress);
+                remuxed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Remux interrupted", e);
+            } finally {
+                transcodeProgressService.finish(videoId, job, remuxed);
+            }
+        }
+
+        masterPlaylistService.rebuild(Path.of(outputDir).getParent());
+        if (videoId != null && !videoId.isEmpty()) {
+            videoService.updateVideoResolutionAndServer(videoId, resolution, serverLocation);
+        }
+    }
+
+    private void handleAudioTask(Map<String, Object> task) throws IOException {
+        String videoId = getAsString(task, "videoId");
+        String outputDir = getAsString(task, "outputDir");
+
+        if (!isDone(Path.of(outputDir, FILE_NAME + "_audio.m3u8"))) {
+            Consumer<FFmpegProgress> progress = transcodeProgressService.track(
+                    videoId, "audio", List.of(), null, getAsDouble(task, "duration"));
+            boolean transcoded = false;
+            try {
+                FFmpegUtil.transcodeAudio(getAsString(task, "videoPath"), outputDir, FILE_NAME,
+                        Boolean.parseBoolean(getAsString(task, "copy")), videoId, progress);
+                transcoded = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Audio transcoding interrupted", e);
+            } finally {
+                transcodeProgressService.finish(videoId, "audio", transcoded);
+            }
+        }
+
+        masterPlaylistService.rebuild(Path.of(outputDir).getParent());
+    }
+
+    private void handlePartTranscodeTask(Map<String, Object> task) throws IOException {
+        String jobId = getAsString(task, "jobId");
+        String videoId = getAsString(task, "videoId");
+        int partIndex = Integer.parseInt(getAsString(task, "partIndex"));
+        double startTime = Double.parseDouble(getAsString(task, "startTime"));
+        List<Integer> heights = getAsIntList(task, "resolutions");
+
+        String outputDir = getAsString(task, "outputDir");
+        boolean done = true;
+        for (Integer height : heights) {
+            done &= isDone(renditionPlaylist(Path.of(outputDir, String.valueOf(height)), height));
+        }
+        // failures are retried; the job is only marked failed once the part is dead-lettered
+        if (!done) {
+            String job = "part-" + partIndex;
+            Consumer<FFmpegProgress> progress = transcodeProgressService.track(
+                    videoId, job, heights, partIndex, getAsDouble(task, "duration"));
+            boolean transcoded = false;
+            // parts published before presets were chosen per job carry none
+            String preset = task.get("preset") != null ? getAsString(task, "preset") : encoderPresetService.getDefaultPreset();
+            long startedAt = System.currentTimeMillis();
+            try {
+                FFmpegUtil.transcodeLadder(LadderTranscodeOptions.builder()
+                        .videoPath(getAsString(task, "videoPath"))
+                        .outputDir(outputDir)
+                        .heights(heights)
+                        .rungs(videoService.getLadder(videoId))
+                        .threads(workerPool.getThreadsPerJob())
+                        .preset(preset)
+                        .outputTsOffset(startTime)
+                        .segmentPrefix(String.format(Locale.ROOT, "p%04d_", partIndex))
+                        .tag(videoId)
+                        .progressListener(progress)
+                        .build());
+                transcoded = true;
+                encoderPresetService.recordJob(getAsDouble(task, "cost"), System.currentTimeMillis() - startedAt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Part transcoding interrupted", e);
+            } finally {
+                transcodeProgressService.finish(videoId, job, transcoded);
+            }
+        }
+
+        ChunkedTranscodeJob stitched = chunkedTranscodeService.completePart(jobId, partIndex);
+        if (stitched != null) {
+            masterPlaylistService.rebuild(Path.of(stitched.getOutputDir()));
+            encoderPresetService.recordPreset(videoId, stitched.getResolutions(),
+                    stitched.getPreset() != null ? stitched.getPreset() : encoderPresetService.getDefaultPreset());
+            for (Integer height : stitched.getResolutions()) {
+                videoService.updateVideoResolutionAndServer(videoId, height, serverLocation);
+            }
+        }
+    }
+
+    private void handleBackfillTask(Map<String, Object> task) throws IOException {
+        String videoId = getAsString(task, "videoId");
+        String videoPath = getAsString(task, "videoPath");
+        Path videoDir = Path.of(getAsString(task, "outputDir"));
+        Path stage = videoDir.resolve(BackfillService.STAGE_DIR);
+        List<Integer> heights = getAsIntList(task, "resolutions");
+        List<LadderRung> ladder = getAsLadder(task, "ladder");
+        // tasks queued before the ladder travelled with them find it on the video
+        Map<Integer, LadderRung> rungs = ladder.isEmpty() ? videoService.getLadder(videoId)
+                : ladder.stream().collect(Collectors.toMap(LadderRung::getHeight, rung -> rung, (a, b) -> a));
+        boolean audio = Boolean.parseBoolean(getAsString(task, "audio"));
+        Double duration = getAsDouble(task, "duration");
+
+        // the live renditions stay untouched until everything is staged, a redelivery resumes what is missing
+        List<Integer> pending = new ArrayList<>();
+        for (Integer height : heights) {
+            if (!isDone(renditionPlaylist(stage.resolve(String.valueOf(height)), height))) pending.add(height);
+        }
+        String preset = encoderPresetService.choose();
+        if (!pending.isEmpty()) {
+            Consumer<FFmpegProgress> progress = transcodeProgressService.track(videoId, "backfill", pending, null, duration);
+            boolean transcoded = false;
+            try {
+                FFmpegUtil.transcodeLadder(LadderTranscodeOptions.builder()
+                        .videoPath(videoPath)
+                        .outputDir(stage.toString())
+                        .heights(pending)
+                        .rungs(rungs)
+                        .threads(workerPool.getThreadsPerJob())
+                        .preset(preset)
+                        .duration(duration)
+                        .tag(videoId)
+                        .progressListener(progress)
+                        .build());
+                transcoded = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Backfill transcoding interrupted", e);
+            } finally {
+                transcodeProgressService.finish(videoId, "backfill", transcoded);
+            }
+        }
+        Path audioDir = stage.resolve(MasterPlaylistService.AUDIO_DIR);
+        if (audio && !isDone(audioDir.resolve(FILE_NAME + "_audio.m3u8"))) {
+            Consumer<FFmpegProgress> progress = transcodeProgressService.track(videoId, "backfill-audio", List.of(), null, duration);
+            boolean transcoded = false;
+            try {
+                FFmpegUtil.transcodeAudio(videoPath, audioDir.toString(), FILE_NAME,
+                        Boolean.parseBoolean(getAsString(task, "copy")), videoId, progress);
+                transcoded = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Backfill audio interrupted", e);
+            } finally {
+                transcodeProgressService.finish(videoId, "backfill-audio", transcoded);
+            }
+        }
+
+        backfillService.swapIn(videoId, videoDir, heights, ladder, audio);
+        encoderPresetService.recordPreset(videoId, pending, preset);
+    }
+
     private void handleDeleteTask(Map<String, Object> task) {
         String videoId = getAsString(task, "videoId");
         String username = getAsString(task, "username");
@@ -88,6 +475,12 @@ public class TaskConsumerService {
             return;
         }
 
+        // stop any transcode still writing into the directory we are about to remove
+        int cancelled = ProcessSupervisor.cancelByTag(videoId);
+        if (cancelled > 0) {
+            System.out.println("Cancelled " + cancelled + " running process(es) for video " + videoId);
+        }
+
         try {
             boolean deleted = videoService.deleteVideo(username, videoId);
             if (deleted) {
@@ -104,4 +497,45 @@ public class TaskConsumerService {
         Object value = task.get(key);
         return value != null ? value.toString() : null;
     }
+
+    private Double getAsDouble(Map<String, Object> task, String key) {
+        Object value = task.get(key);
+        if (value == null) return null;
+        try {
+            return Double.parseDouble(value.toString());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private List<Integer> getAsIntList(Map<String, Object> task, String key) {
+        Object value = task.get(key);
+        if (!(value instanceof List<?> list)) {
+            return List.of();
+        }
+        return list.stream()
+                .map(item -> Integer.parseInt(item.toString()))
+                .toList();
+    }
+
+    private List<LadderRung> getAsLadder(Map<String, Object> task, String key) {
+        Object value = task.get(key);
+        if (!(value instanceof List<?> list)) {
+            return List.of();
+        }
+        return list.stream()
+                .filter(Map.class::isInstance)
+                .map(item -> (Map<?, ?>) item)
+                .map(rung -> LadderRung.builder()
+                        .height(getAsInt(rung.get("height")))
+                        .targetBitrate(getAsInt(rung.get("targetBitrate")))
+                        .maxrate(getAsInt(rung.get("maxrate")))
+                        .bufsize(getAsInt(rung.get("bufsize")))
+                        .build())
+                .toList();
+    }
+
+    private static int getAsInt(Object value) {
+        return value instanceof Number number ? number.intValue() : 0;
+    }
 }
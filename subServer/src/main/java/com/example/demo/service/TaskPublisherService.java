@@ -1,33 +1,155 @@
 package com.example.demo.service;
 
+import com.example.demo.config.RabbitMQConfig;
+import com.example.demo.model.LadderRung;
+import com.example.demo.model.TaskInFlight;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
 import org.springframework.amqp.rabbit.connection.CorrelationData;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
 @Service
 public class TaskPublisherService {
+    // the queue is declared with x-max-priority 10
+    public static final int PRIORITY_FAST_START = 9;
+    public static final int PRIORITY_NORMAL = 5;
+    // reprocessing of old videos, anything else goes first
+    public static final int PRIORITY_BACKFILL = 0;
+    // how often a task was tried already and why the last try failed
+    public static final String ATTEMPT_HEADER = "x-attempt";
+    public static final String ERROR_HEADER = "x-last-error";
+    // id of the task's TaskInFlight marker
+    public static final String IN_FLIGHT_ID = "inFlightId";
+
     @Autowired
     RabbitTemplate rabbitTemplate;
+    @Autowired
+    TranscodeSchedulerService transcodeSchedulerService;
+    @Autowired
+    MongoTemplate mongoTemplate;
     @Value("${rabbitmq.exchange}")
     private String exchangeName;
     @Value("${rabbitmq.routingkey}")
     private String routingkey;
+    @Value("${rabbitmq.queue}")
+    private String queueName;
+    @Value("${rabbitmq.retry.delays-ms:30000,120000,600000}")
+    private long[] retryDelaysMs;
 
-    public void publishTranscodeTask(String videoId, String videoPath, String outputDir, String resolution) {
+    public void publishTranscodeTask(String videoId, String videoPath, String outputDir, String resolution, Double duration, int priority) {
         Map<String, Object> payload = new HashMap<>();
         payload.put("action", "TRANSCODE");
         payload.put("videoId", videoId);
         payload.put("videoPath", videoPath);
         payload.put("outputDir", outputDir);
         payload.put("resolution", resolution);
+        payload.put("duration", duration);
+
+        schedule(payload, priority, videoId, List.of(parseHeight(resolution)), duration);
+    }
+
+    public void publishRemuxTask(String videoId, String videoPath, String outputDir, int resolution, Double duration) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("action", "REMUX");
+        payload.put("videoId", videoId);
+        payload.put("videoPath", videoPath);
+        payload.put("outputDir", outputDir);
+        payload.put("resolution", resolution);
+        payload.put("duration", duration);
+
+        // packaging only takes seconds, let it jump the queue like a fast-start rendition
+        sendTask(payload, PRIORITY_FAST_START);
+    }
+
+    public void publishAudioTask(String videoId, String videoPath, String outputDir, boolean copy, Double duration) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("action", "TRANSCODE_AUDIO");
+        payload.put("videoId", videoId);
+        payload.put("videoPath", videoPath);
+        payload.put("outputDir", outputDir);
+        payload.put("copy", copy);
+        payload.put("duration", duration);
 
-        sendTask(payload);
+        // every video rendition references this group, so it has to be ready as early as the first one
+        sendTask(payload, PRIORITY_FAST_START);
+    }
+
+    public void publishLadderTranscodeTask(String videoId, String videoPath, String outputDir, List<Integer> resolutions,
+                                           String previewDir, Double duration, int priority) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("action", "TRANSCODE_LADDER");
+        payload.put("videoId", videoId);
+        payload.put("videoPath", videoPath);
+        payload.put("outputDir", outputDir);
+        payload.put("resolutions", resolutions);
+        payload.put("previewDir", previewDir);
+        payload.put("duration", duration);
+
+        schedule(payload, priority, videoId, resolutions, duration);
+    }
+
+    public void publishPreviewTask(String videoId, String videoPath, String previewDir, Double duration) {
+        publishPreviewTask(videoId, videoPath, previewDir, duration, PRIORITY_NORMAL);
+    }
+
+    public void publishPreviewTask(String videoId, String videoPath, String previewDir, Double duration, int priority) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("action", "PREVIEWS");
+        payload.put("videoId", videoId);
+        payload.put("videoPath", videoPath);
+        payload.put("previewDir", previewDir);
+        payload.put("duration", duration);
+
+        schedule(payload, priority, videoId, List.of(), duration);
+    }
+
+    public void publishPartTranscodeTask(String jobId, String videoId, String partPath, String outputDir,
+                                         List<Integer> resolutions, int partIndex, double startTime, double duration,
+                                         String preset) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("action", "TRANSCODE_PART");
+        payload.put("jobId", jobId);
+        payload.put("videoId", videoId);
+        payload.put("videoPath", partPath);
+        payload.put("outputDir", outputDir);
+        payload.put("resolutions", resolutions);
+        payload.put("partIndex", partIndex);
+        payload.put("startTime", startTime);
+        payload.put("duration", duration);
+        payload.put("preset", preset);
+
+        schedule(payload, PRIORITY_NORMAL, videoId, resolutions, duration);
+    }
+
+    /**
+     * Re-encode a video's whole ladder, and its audio rendition if it has audio, into a staging directory
+     * that replaces the live renditions once done. The planned ladder is only recorded on the video then.
+     */
+    public void publishBackfillTask(String videoId, String videoPath, String videoDir, List<LadderRung> ladder,
+                                    boolean audio, boolean copyAudio, Double duration) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("action", "BACKFILL_REENCODE");
+        payload.put("videoId", videoId);
+        payload.put("videoPath", videoPath);
+        payload.put("outputDir", videoDir);
+        payload.put("resolutions", ladder.stream().map(LadderRung::getHeight).toList());
+        payload.put("ladder", ladder);
+        payload.put("audio", audio);
+        payload.put("copy", copyAudio);
+        payload.put("duration", duration);
+
+        sendTask(payload, PRIORITY_BACKFILL);
     }
 
     public void publishDeleteTask(String videoId, String username) {
@@ -36,19 +158,109 @@ public class TaskPublisherService {
         payload.put("videoId", videoId);
         payload.put("username", username);
 
-        sendTask(payload);
+        sendTask(payload, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Park a failed task in the delay queue of its next attempt, from where it returns to the task queue.
+     * Returns false when every retry is used up and the task went to the dead-letter queue instead.
+     * Throws if the broker did not take it, so the caller can leave the delivery unacked.
+     */
+    public boolean retryOrDeadLetter(Message message, String error) {
+        MessageProperties properties = message.getMessageProperties();
+        Object header = properties.getHeaders().get(ATTEMPT_HEADER);
+        int attempt = header instanceof Number number ? number.intValue() : 0;
+        properties.setHeader(ATTEMPT_HEADER, attempt + 1);
+        properties.setHeader(ERROR_HEADER, error != null && error.length() > 1000 ? error.substring(0, 1000) : error);
+
+        if (attempt < retryDelaysMs.length) {
+            long delay = retryDelaysMs[attempt];
+            System.out.println("Retrying task in " + delay + " ms (attempt " + (attempt + 2) + "): " + error);
+            rabbitTemplate.send("", RabbitMQConfig.retryQueueName(queueName, delay), message);
+            return true;
+        }
+        System.err.println("Task failed " + (attempt + 1) + " times, moving it to the dead-letter queue: " + error);
+        rabbitTemplate.send("", RabbitMQConfig.deadLetterQueueName(queueName), message);
+        return false;
+    }
+
+    /**
+     * Messages waiting in the task queue, not counting those a consumer holds.
+     */
+    public long getQueueDepth() {
+        Long depth = rabbitTemplate.execute(channel -> channel.messageCount(queueName));
+        return depth != null ? depth : 0;
+    }
+
+    /**
+     * Encodes go through the fair scheduler, except fast-start work that has to start right away and backfill,
+     * which throttles itself and must not take a share from uploads.
+     */
+    private void schedule(Map<String, Object> payload, int priority, String videoId, List<Integer> heights, Double duration) {
+        if (!transcodeSchedulerService.isEnabled() || priority >= PRIORITY_FAST_START || priority <= PRIORITY_BACKFILL) {
+            sendTask(payload, priority);
+            return;
+        }
+        try {
+            transcodeSchedulerService.submit(videoId, payload, priority, heights, duration);
+        } catch (Exception e) {
+            System.err.println("Could not schedule task, sending it directly: " + e.getMessage());
+            sendTask(payload, priority);
+        }
+    }
+
+    private static int parseHeight(String resolution) {
+        try {
+            return Integer.parseInt(resolution.replaceAll("\\D", ""));
+        } catch (RuntimeException e) {
+            return 720;
+        }
+    }
+
+    /**
+     * The task was acked for good or dead-lettered, nothing more will come of it.
+     */
+    public void settled(Map<String, Object> task) {
+        Object inFlightId = task.get(IN_FLIGHT_ID);
+        if (inFlightId == null) return;
+        try {
+            mongoTemplate.remove(Query.query(Criteria.where("_id").is(inFlightId.toString())), TaskInFlight.class);
+        } catch (RuntimeException e) {
+            System.err.println("Could not clear in-flight marker " + inFlightId + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Record the task as in flight for its video before it can be consumed. Deletes need no marker.
+     */
+    private void markInFlight(Map<String, Object> payload) {
+        Object videoId = payload.get("videoId");
+        if (videoId == null || "DELETE".equals(payload.get("action"))) return;
+        TaskInFlight marker = new TaskInFlight();
+        marker.setVideoId(videoId.toString());
+        marker.setAction(String.valueOf(payload.get("action")));
+        try {
+            payload.put(IN_FLIGHT_ID, mongoTemplate.insert(marker).getId());
+        } catch (RuntimeException e) {
+            System.err.println("Could not mark task of video " + videoId + " in flight: " + e.getMessage());
+        }
     }
 
-    private void sendTask(Map<String, Object> payload) {
+    private void sendTask(Map<String, Object> payload, int priority) {
         System.out.println("Preparing to send task to Exchange: '" + exchangeName + "', routingkey: '" + routingkey + "'");
         CorrelationData correlationData = new CorrelationData(UUID.randomUUID().toString());
+        markInFlight(payload);
 
         try {
-            rabbitTemplate.convertAndSend(exchangeName, routingkey, payload, correlationData);
+            rabbitTemplate.convertAndSend(exchangeName, routingkey, payload, message -> {
+                message.getMessageProperties().setPriority(priority);
+                return message;
+            }, correlationData);
             System.out.println("Task sent to queue: " + payload + " with correlation id: " + correlationData.getId());
         } catch (Exception e) {
             System.err.println("FAILED to send task to RabbitMQ: " + e.getMessage());
             e.printStackTrace();
+            settled(payload);
         }
     }
 }
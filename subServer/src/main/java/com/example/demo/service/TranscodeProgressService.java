@@ -0,0 +1,108 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ETranscodeProgressStatus;
+import com.example.demo.model.TranscodeProgress;
+import com.example.demo.model.Video;
+import com.example.demo.repository.TranscodeProgressRepository;
+import com.example.demo.repository.VideoRepository;
+import com.example.demo.util.FFmpegProgress;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Publishes ffmpeg progress of running transcode jobs to the transcode_progress collection,
+ * where the central server picks it up for the uploader. Writes are throttled per job.
+ */
+@Slf4j
+@Service
+public class TranscodeProgressService {
+    private static final long WRITE_INTERVAL_MILLIS = 1000;
+    // weight of the newest sample in the recent speed average
+    private static final double SPEED_SMOOTHING = 0.2;
+
+    @Value("${icurff.app.location}")
+    private String serverLocation;
+
+    @Autowired
+    private TranscodeProgressRepository progressRepository;
+
+    @Autowired
+    private VideoRepository videoRepository;
+
+    private final Map<String, TranscodeProgress> running = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastWrite = new ConcurrentHashMap<>();
+    private volatile double recentSpeed;
+
+    /**
+     * Start tracking a job and return the listener to hand to ffmpeg.
+     *
+     * @param durationSeconds length of the input, used to turn output time into a percentage
+     */
+    public Consumer<FFmpegProgress> track(String videoId, String job, List<Integer> renditions, Integer partIndex, Double durationSeconds) {
+        if (videoId == null || videoId.isBlank()) {
+            return progress -> { };
+        }
+
+        TranscodeProgress progress = new TranscodeProgress();
+        progress.setId(videoId + ":" + job);
+        progress.setVideoId(videoId);
+        progress.setSessionId(videoRepository.findById(videoId).map(Video::getSessionId).orElse(null));
+        progress.setJob(job);
+        progress.setRenditions(renditions);
+        progress.setPartIndex(partIndex);
+        progress.setServerLocation(serverLocation);
+        running.put(progress.getId(), progress);
+        save(progress);
+
+        return report -> {
+            if (durationSeconds != null && durationSeconds > 0) {
+                progress.setPercent(Math.min(100.0, report.outTimeSeconds() * 100.0 / durationSeconds));
+            }
+            if (report.speed() > 0) {
+                progress.setSpeed(report.speed());
+                recentSpeed = recentSpeed == 0 ? report.speed()
+                        : recentSpeed * (1 - SPEED_SMOOTHING) + report.speed() * SPEED_SMOOTHING;
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastWrite.getOrDefault(progress.getId(), 0L) >= WRITE_INTERVAL_MILLIS) {
+                save(progress);
+            }
+        };
+    }
+
+    public void finish(String videoId, String job, boolean success) {
+        if (videoId == null || videoId.isBlank()) return;
+        String id = videoId + ":" + job;
+        TranscodeProgress progress = running.remove(id);
+        lastWrite.remove(id);
+        if (progress == null) return;
+
+        progress.setStatus(success ? ETranscodeProgressStatus.DONE : ETranscodeProgressStatus.FAILED);
+        if (success) progress.setPercent(100.0);
+        save(progress);
+    }
+
+    /**
+     * Smoothed encoding speed (x realtime) of the jobs that ran on this node recently.
+     */
+    public double getRecentSpeed() {
+        return recentSpeed;
+    }
+
+    private void save(TranscodeProgress progress) {
+        lastWrite.put(progress.getId(), System.currentTimeMillis());
+        try {
+            progressRepository.save(progress);
+        } catch (Exception e) {
+            // progress is best effort, never fail the transcode over it
+            log.warn("Failed to save transcode progress {}: {}", progress.getId(), e.getMessage());
+        }
+    }
+}
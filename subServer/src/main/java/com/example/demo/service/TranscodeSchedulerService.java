@@ -0,0 +1,269 @@
+package com.example.demo.service;
+
+import com.example.demo.model.EScheduledTaskStatus;
+import com.example.demo.model.MediaInfo;
+import com.example.demo.model.ScheduledTask;
+import com.example.demo.model.Video;
+import com.example.demo.repository.VideoRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Fair share of the transcode workers between users. Normal-priority work is not published straight to the task
+ * queue but parked in one sub-queue per user, cheapest task first. Deficit round robin releases it to the broker
+ * only as fast as workers free up: every user with pending work earns the same quantum of encode cost per round,
+ * so one user's backlog of long videos cannot hold up a short upload of someone else. The cost of a task is its
+ * duration times the pixels of the renditions it produces, taken from the probe data.
+ * <p>
+ * Fast-start work (the first rendition, audio, remux) is cheap and bypasses the scheduler.
+ */
+@Slf4j
+@Service
+public class TranscodeSchedulerService {
+    // payload key carrying the scheduled task id through the broker, so the consumer can report it done
+    public static final String TASK_ID = "scheduledTaskId";
+
+    @Value("${icurff.transcode.scheduler.enabled:true}")
+    private boolean enabled;
+
+    // credit per user and round in megapixel-seconds; a 10 minute 1080p ladder costs about 2200
+    @Value("${icurff.transcode.scheduler.quantum:2000}")
+    private double quantum;
+
+    // scheduled tasks in the broker at once, 0 for one more than there are workers
+    @Value("${icurff.transcode.scheduler.window:0}")
+    private int window;
+
+    // a dispatched task nobody reported done after this long is assumed lost
+    @Value("${icurff.transcode.scheduler.stale-dispatch-hours:12}")
+    private long staleDispatchHours;
+
+    @Value("${rabbitmq.exchange}")
+    private String exchangeName;
+
+    @Value("${rabbitmq.routingkey}")
+    private String routingkey;
+
+    @Value("${icurff.app.location}")
+    private String serverLocation;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private VideoRepository videoRepository;
+
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+
+    @Autowired
+    private TranscodeWorkerPool workerPool;
+
+    private final Map<String, PriorityQueue<ScheduledTask>> queues = new HashMap<>();
+    // users with pending work in round robin order
+    private final Deque<String> active = new ArrayDeque<>();
+    private final Map<String, Double> deficits = new HashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Queue a task for the owner of the video. {@code heights} are the renditions it produces, empty for work
+     * that only decodes the source.
+     */
+    public void submit(String videoId, Map<String, Object> payload, int priority, List<Integer> heights, Double duration) {
+        Video video = videoId != null ? videoRepository.findById(videoId).orElse(null) : null;
+
+        ScheduledTask task = new ScheduledTask();
+        task.setId(UUID.randomUUID().toString());
+        task.setServerLocation(serverLocation);
+        task.setUsername(video != null ? video.getUsername() : "");
+        task.setVideoId(videoId);
+        task.setPriority(priority);
+        task.setCost(estimateCost(video, heights, duration));
+        // the id is assigned up front, so auditing would take the task for an existing one
+        task.setCreatedDate(Instant.now());
+        payload.put(TASK_ID, task.getId());
+        // lets the consumer measure the encode throughput
+        payload.put("cost", task.getCost());
+        task.setPayload(payload);
+        mongoTemplate.insert(task);
+
+        synchronized (this) {
+            enqueue(task);
+        }
+        log.info("Scheduled {} of {} for {} (cost {})", payload.get("action"), videoId, task.getUsername(),
+                Math.round(task.getCost()));
+        dispatch();
+    }
+
+    /**
+     * A consumer is done with a scheduled task, whatever the outcome; its slot goes to the next one in line.
+     */
+    public void finished(String taskId) {
+        if (taskId == null) return;
+        synchronized (this) {
+            inFlight.remove(taskId);
+        }
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(taskId)), ScheduledTask.class);
+        dispatch();
+    }
+
+    public synchronized int getPendingCount() {
+        return queues.values().stream().mapToInt(PriorityQueue::size).sum();
+    }
+
+    /**
+     * Estimated cost of everything still waiting, in megapixel-seconds.
+     */
+    public synchronized double getPendingCost() {
+        return queues.values().stream().flatMap(PriorityQueue::stream).mapToDouble(ScheduledTask::getCost).sum();
+    }
+
+    /**
+     * Hand tasks to the broker while there is room, in deficit round robin order over the users.
+     */
+    public synchronized void dispatch() {
+        int limit = window > 0 ? window : workerPool.getMaxWorkers() + 1;
+        while (inFlight.size() < limit && !active.isEmpty()) {
+            String user = active.peekFirst();
+            PriorityQueue<ScheduledTask> queue = queues.get(user);
+            ScheduledTask head = queue.peek();
+            double deficit = deficits.getOrDefault(user, 0.0);
+            if (head.getCost() > deficit) {
+                // not enough credit for this user's next task: top it up and give the next user a turn
+                deficits.put(user, deficit + quantum);
+                active.addLast(active.pollFirst());
+                continue;
+            }
+            if (!send(head)) {
+                // broker unreachable, the next tick tries again
+                return;
+            }
+            queue.poll();
+            inFlight.add(head.getId());
+            deficits.put(user, deficit - head.getCost());
+            if (queue.isEmpty()) {
+                // an idle user does not save up credit
+                queues.remove(user);
+                deficits.remove(user);
+                active.pollFirst();
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${icurff.transcode.scheduler.tick-ms:5000}")
+    public void tick() {
+        if (!enabled) return;
+        Instant cutoff = Instant.now().minus(Duration.ofHours(staleDispatchHours));
+        List<ScheduledTask> stale = mongoTemplate.findAllAndRemove(Query.query(Criteria.where("serverLocation").is(serverLocation)
+                .and("status").is(EScheduledTaskStatus.DISPATCHED)
+                .and("dispatchedDate").lt(cutoff)), ScheduledTask.class);
+        if (!stale.isEmpty()) {
+            synchronized (this) {
+                stale.forEach(task -> inFlight.remove(task.getId()));
+            }
+            log.warn("Released {} dispatched task(s) that were never reported done", stale.size());
+        }
+        dispatch();
+    }
+
+    /**
+     * Pick up where the last run stopped: pending tasks are queued again, dispatched ones still occupy their
+     * slot until their consumer reports them.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void restore() {
+        if (!enabled) return;
+        List<ScheduledTask> tasks = mongoTemplate.find(
+                Query.query(Criteria.where("serverLocation").is(serverLocation)), ScheduledTask.class);
+        synchronized (this) {
+            for (ScheduledTask task : tasks) {
+                if (task.getStatus() == EScheduledTaskStatus.DISPATCHED) {
+                    inFlight.add(task.getId());
+                } else {
+                    enqueue(task);
+                }
+            }
+        }
+        if (!tasks.isEmpty()) {
+            log.info("Restored {} scheduled transcode task(s)", tasks.size());
+        }
+        dispatch();
+    }
+
+    private void enqueue(ScheduledTask task) {
+        queues.computeIfAbsent(task.getUsername(), user -> {
+            active.addLast(user);
+            // within one user: fast-start first, then the cheapest
+            return new PriorityQueue<>(Comparator
+                    .comparing((ScheduledTask t) -> t.getPriority() != null ? t.getPriority() : 0).reversed()
+                    .thenComparing(ScheduledTask::getCost)
+                    .thenComparing(t -> t.getCreatedDate() != null ? t.getCreatedDate() : Instant.EPOCH));
+        }).add(task);
+    }
+
+    private boolean send(ScheduledTask task) {
+        try {
+            rabbitTemplate.convertAndSend(exchangeName, routingkey, task.getPayload(), message -> {
+                message.getMessageProperties().setPriority(task.getPriority());
+                return message;
+            });
+        } catch (Exception e) {
+            log.error("Could not dispatch scheduled task {}: {}", task.getId(), e.getMessage());
+            return false;
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(task.getId())),
+                new Update().set("status", EScheduledTaskStatus.DISPATCHED).set("dispatchedDate", Instant.now()),
+                ScheduledTask.class);
+        return true;
+    }
+
+    /**
+     * Megapixel-seconds: the duration times the output pixels per frame, with the width from the source's
+     * aspect ratio. Work without renditions of its own (previews) counts as one small frame.
+     */
+    private double estimateCost(Video video, List<Integer> heights, Double duration) {
+        double seconds = duration != null && duration > 0 ? duration
+                : video != null && video.getDuration() != null && video.getDuration() > 0 ? video.getDuration()
+                : 60;
+        double aspect = 16.0 / 9.0;
+        MediaInfo info = video != null ? video.getMediaInfo() : null;
+        if (info != null && info.getDisplayWidth() > 0 && info.getDisplayHeight() > 0) {
+            aspect = (double) info.getDisplayWidth() / info.getDisplayHeight();
+        }
+        double pixels = 0;
+        for (Integer height : heights) {
+            pixels += height * (height * aspect);
+        }
+        if (pixels == 0) {
+            pixels = 320 * 180;
+        }
+        return seconds * pixels / 1_000_000;
+    }
+}
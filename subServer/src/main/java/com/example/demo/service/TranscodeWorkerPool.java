@@ -0,0 +1,93 @@
+package com.example.demo.service;
+
+import com.example.demo.payload.response.WorkerPoolStatsResponse;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sizes the transcode consumers from the cores of this node and keeps track of how busy they are.
+ * Each job runs ffmpeg with {@code threadsPerJob} threads, so the pool never starts more jobs than
+ * the machine can run side by side without oversubscribing it.
+ * <p>
+ * A ladder job runs one encoder per rung (plus the preview outputs). Instead of weighting such a job by
+ * its encoder count, {@link com.example.demo.util.FFmpegUtil#transcodeLadder} divides {@code threadsPerJob}
+ * between its encoders, so every job costs about the same number of cores whatever its rung count.
+ */
+@Slf4j
+@Getter
+@Service
+public class TranscodeWorkerPool {
+
+    private final int availableCores;
+    private final int threadsPerJob;
+    private final int minWorkers;
+    private final int maxWorkers;
+
+    private final AtomicInteger activeJobs = new AtomicInteger();
+    private final AtomicLong completedJobs = new AtomicLong();
+    private final AtomicLong failedJobs = new AtomicLong();
+    private final AtomicLong busyMillis = new AtomicLong();
+    private final long startedAt = System.currentTimeMillis();
+
+    public TranscodeWorkerPool(@Value("${icurff.transcode.workers.threads-per-job:2}") int threadsPerJob,
+                               @Value("${icurff.transcode.workers.min:1}") int minWorkers,
+                               @Value("${icurff.transcode.workers.max:0}") int maxWorkers) {
+        this.availableCores = Runtime.getRuntime().availableProcessors();
+        this.threadsPerJob = Math.max(1, threadsPerJob);
+        // max <= 0 means "derive from the cores of this node"
+        int derivedMax = Math.max(1, availableCores / this.threadsPerJob);
+        this.maxWorkers = maxWorkers > 0 ? maxWorkers : derivedMax;
+        this.minWorkers = Math.max(1, Math.min(minWorkers, this.maxWorkers));
+        log.info("Transcode worker pool: cores={}, threadsPerJob={}, workers={}..{}",
+                availableCores, this.threadsPerJob, this.minWorkers, this.maxWorkers);
+    }
+
+    public long jobStarted() {
+        activeJobs.incrementAndGet();
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * {@link #jobStarted()} for work outside the transcode consumers, which may only use a worker that is idle.
+     * Returns -1 without starting anything when every worker is busy.
+     */
+    public long tryJobStarted() {
+        int active;
+        do {
+            active = activeJobs.get();
+            if (active >= maxWorkers) return -1;
+        } while (!activeJobs.compareAndSet(active, active + 1));
+        return System.currentTimeMillis();
+    }
+
+    public void jobFinished(long startedAtMillis, boolean success) {
+        activeJobs.decrementAndGet();
+        busyMillis.addAndGet(System.currentTimeMillis() - startedAtMillis);
+        if (success) {
+            completedJobs.incrementAndGet();
+        } else {
+            failedJobs.incrementAndGet();
+        }
+    }
+
+    public WorkerPoolStatsResponse getStats() {
+        long uptime = Math.max(1, System.currentTimeMillis() - startedAt);
+        int active = activeJobs.get();
+        return WorkerPoolStatsResponse.builder()
+                .availableCores(availableCores)
+                .threadsPerJob(threadsPerJob)
+                .minWorkers(minWorkers)
+                .maxWorkers(maxWorkers)
+                .activeJobs(active)
+                .utilization((double) active / maxWorkers)
+                .averageUtilization((double) busyMillis.get() / (uptime * maxWorkers))
+                .completedJobs(completedJobs.get())
+                .failedJobs(failedJobs.get())
+                .build();
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.demo.service;
+
+import com.example.demo.exception.ChunkIntegrityException;
+import com.example.demo.exception.ResourceNotFoundException;
+import com.example.demo.exception.ResourceTakenException;
+import com.example.demo.model.EUploadStatus;
+import com.example.demo.model.UploadSession;
+import com.example.demo.repository.UploadSessionRepository;
+import com.example.demo.util.ChecksumChannel;
+import com.example.demo.util.ChunkChecksum;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Storage side of the tus 1.0 resumable upload protocol. A tus upload is an ordinary upload session: the client
+ * creates it on the central server as before and names it in the metadata of the tus creation request. PATCH
+ * bodies are appended to the same assembly file positional chunk writes fill, so finalization does not change.
+ * The offset is saved on the session after every append, and a PATCH cut off by the network keeps the bytes
+ * that reached the disk, so the client resumes from the last byte written instead of from zero.
+ */
+@Slf4j
+@Service
+public class TusUploadService {
+
+    @Value("${icurff.app.storage}")
+    private String storageBaseDir;
+
+    // largest upload accepted over tus in bytes, 0 for no limit
+    @Value("${icurff.upload.tus.max-size:0}")
+    private long maxSize;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private UploadSessionRepository uploadSessionRepository;
+
+    @Autowired
+    private ContentDedupService contentDedupService;
+
+    @Autowired
+    private UploadChunkTracker uploadChunkTracker;
+
+    @Autowired
+    private EarlyIngestService earlyIngestService;
+
+    // uploads receiving a PATCH right now; one at a time, the protocol has no way to interleave them
+    private final Set<String> receiving = ConcurrentHashMap.newKeySet();
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Start, or resume, a tus upload of {@code length} bytes into the session named by the "sessionId" metadata.
+     * Known metadata ("filename", "filetype", "duration", "sha256") is copied onto the session.
+     */
+    public UploadSession create(String userId, String username, long length, Map<String, String> metadata) throws IOException {
+        String sessionId = metadata.get("sessionId");
+        if (sessionId == null || sessionId.isBlank()) {
+            throw new IllegalArgumentException("Upload-Metadata has to name the upload session as sessionId");
+        }
+        if (length < 0 || (maxSize > 0 && length > maxSize)) {
+            throw new IllegalArgumentException("Upload-Length " + length + " is not allowed");
+        }
+        UploadSession session = find(userId, sessionId);
+        if (session.getStatus() != EUploadStatus.UPLOADING) {
+            throw new ResourceTakenException("Upload " + sessionId + " is already " + session.getStatus());
+        }
+        if (session.getUploadOffset() != null && session.getUploadOffset() > 0) {
+            // a client that lost the upload URL creates again and continues where it was
+            if (!Objects.equals(session.getFileSize(), length)) {
+                throw new ResourceTakenException("Upload " + sessionId + " was started with another length");
+            }
+            return session;
+        }
+
+        Update update = new Update().set("fileSize", length).set("uploadOffset", 0L);
+        if (metadata.containsKey("filename")) update.set("fileName", metadata.get("filename"));
+        if (metadata.containsKey("filetype")) update.set("fileType", metadata.get("filetype"));
+        if (metadata.containsKey("sha256")) update.set("fileSha256", ChunkChecksum.of(null, metadata.get("sha256")).sha256());
+        if (metadata.containsKey("duration")) {
+            try {
+                update.set("duration", (int) Math.round(Double.parseDouble(metadata.get("duration"))));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("duration is not a number: " + metadata.get("duration"));
+            }
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(sessionId)), update, UploadSession.class);
+        Files.createDirectories(uploadDir(username, sessionId));
+        return mongoTemplate.findById(sessionId, UploadSession.class);
+    }
+
+    public UploadSession find(String userId, String sessionId) {
+        return uploadSessionRepository.findById(sessionId)
+                .filter(s -> Objects.equals(s.getUser_id(), userId))
+                .orElseThrow(() -> new ResourceNotFoundException("Upload session not found"));
+    }
+
+    public boolean isComplete(UploadSession session) {
+        return session.getUploadOffset() != null && session.getFileSize() != null
+                && session.getUploadOffset() >= session.getFileSize();
+    }
+
+    /**
+     * Append a PATCH body at {@code offset}, which has to be where the upload currently ends. Returns the new
+     * offset. With a declared checksum the body counts only if it arrived whole and matches; without one every
+     * byte that was written counts, also when the connection broke halfway.
+     */
+    public long append(String userId, String username, String sessionId, long offset, InputStream body,
+                       long contentLength, ChunkChecksum expected) throws IOException {
+        if (!receiving.add(sessionId)) {
+            throw new ResourceTakenException("Upload " + sessionId + " is receiving another PATCH");
+        }
+        try {
+            UploadSession session = find(userId, sessionId);
+            if (session.getStatus() != EUploadStatus.UPLOADING || session.getFileSize() == null) {
+                throw new ResourceTakenException("Upload " + sessionId + " does not accept data");
+            }
+            long current = session.getUploadOffset() != null ? session.getUploadOffset() : 0;
+            if (offset != current) {
+                throw new ResourceTakenException("Upload-Offset is " + offset + " but the upload is at " + current);
+            }
+            long remaining = session.getFileSize() - current;
+            if (contentLength > remaining) {
+                throw new IllegalArgumentException("PATCH of " + contentLength + " bytes exceeds the Upload-Length");
+            }
+            long limit = contentLength >= 0 ? contentLength : remaining;
+
+            Path target = uploadDir(username, sessionId).resolve(VideoService.ASSEMBLY_FILE);
+            Files.createDirectories(target.getParent());
+            MessageDigest content = contentDedupService.continueAtOffset(sessionId, current);
+            ChecksumChannel in = new ChecksumChannel(Channels.newChannel(body), expected != null && expected.wantsSha256(), content);
+            long written = 0;
+            IOException broken = null;
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                while (written < limit) {
+                    buffer.clear().limit((int) Math.min(buffer.capacity(), limit - written));
+                    int read;
+                    try {
+                        read = in.read(buffer);
+                    } catch (IOException e) {
+                        broken = e;
+                        break;
+                    }
+                    if (read < 0) break;
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        written += out.write(buffer, current + written);
+                    }
+                }
+            }
+
+            if (expected != null) {
+                if (broken != null || written < limit) {
+                    throw new ChunkIntegrityException("PATCH ended after " + written + " of " + limit
+                            + " bytes and cannot be verified, send it again");
+                }
+                String mismatch = expected.mismatch(in.getChecksum(), in.getSha256());
+                if (mismatch != null) {
+                    log.warn("Rejecting PATCH of upload {} at {}: {}", sessionId, current, mismatch);
+                    throw new ChunkIntegrityException("PATCH at " + current + " is corrupt (" + mismatch + "), send it again");
+                }
+            }
+            if (written > 0) {
+                mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(sessionId)),
+                        new Update().set("uploadOffset", current + written), UploadSession.class);
+                contentDedupService.appended(sessionId, target, current, written, content);
+            }
+            if (broken != null) {
+                log.info("PATCH of upload {} broke off, it resumes at {}", sessionId, current + written);
+                throw broken;
+            }
+            return current + written;
+        } finally {
+            // nothing is kept once the PATCH is over, whether the upload completes, resumes later or is abandoned
+            receiving.remove(sessionId);
+        }
+    }
+
+    /**
+     * Drop an upload that has not been finalized, with everything stored for it.
+     */
+    public void terminate(String userId, String username, String sessionId) throws IOException {
+        UploadSession session = find(userId, sessionId);
+        if (session.getStatus() == EUploadStatus.FINALIZING || session.getStatus() == EUploadStatus.COMPLETED) {
+            throw new ResourceTakenException("Upload " + sessionId + " is already " + session.getStatus());
+        }
+        Path dir = uploadDir(username, sessionId);
+        if (Files.exists(dir)) {
+            try (Stream<Path> paths = Files.walk(dir)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        earlyIngestService.cancel(sessionId);
+        contentDedupService.discard(sessionId);
+        uploadChunkTracker.forget(sessionId);
+        uploadSessionRepository.delete(session);
+    }
+
+    private Path uploadDir(String username, String sessionId) {
+        return Path.of(storageBaseDir, "uploads", username, sessionId);
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.demo.service;
+
+import com.example.demo.model.UploadSession;
+import com.example.demo.payload.response.ChunkRangeResponse;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which chunks of an upload have arrived, as one bit per chunk. Chunks may come in any order and in parallel;
+ * the upload is complete when every bit is set, not when the chunk with the highest index shows up.
+ * The bitmap is kept in memory and written through to the session, so it survives a restart and a client can
+ * ask for the missing ranges to resume. Sessions nobody wrote to for a while are evicted from memory and read
+ * back from the session if their client comes back.
+ */
+@Slf4j
+@Service
+public class UploadChunkTracker {
+
+    @Value("${icurff.upload.tracker.idle-minutes:30}")
+    private long idleMinutes;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    private final Map<String, Tracked> received = new ConcurrentHashMap<>();
+
+    /**
+     * Record a stored chunk. Returns true when all {@code totalChunks} chunks are in, also for repeated chunks,
+     * so a client retrying the chunk that completed the upload triggers finalization again.
+     */
+    public boolean markReceived(String sessionId, int chunkIndex, int totalChunks) {
+        BitSet bits = track(sessionId);
+        synchronized (bits) {
+            if (!bits.get(chunkIndex)) {
+                bits.set(chunkIndex);
+                mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(sessionId)),
+                        new Update().set("receivedChunks", bits.toByteArray())
+                                .set("uploadedChunks", bits.cardinality()),
+                        UploadSession.class);
+            }
+            return bits.nextClearBit(0) >= totalChunks;
+        }
+    }
+
+    /**
+     * Take back a chunk whose stored bytes were overwritten by a resend that was rejected.
+     */
+    public void unmark(String sessionId, int chunkIndex) {
+        BitSet bits = track(sessionId);
+        synchronized (bits) {
+            if (bits.get(chunkIndex)) {
+                bits.clear(chunkIndex);
+                mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(sessionId)),
+                        new Update().set("receivedChunks", bits.toByteArray())
+                                .set("uploadedChunks", bits.cardinality()),
+                        UploadSession.class);
+            }
+        }
+    }
+
+    public int receivedCount(String sessionId) {
+        BitSet bits = peek(sessionId);
+        synchronized (bits) {
+            return bits.cardinality();
+        }
+    }
+
+    /**
+     * How many chunks from the first one on have all arrived.
+     */
+    public int contiguousCount(String sessionId) {
+        BitSet bits = peek(sessionId);
+        synchronized (bits) {
+            return bits.nextClearBit(0);
+        }
+    }
+
+    /**
+     * Runs of chunk indexes below {@code totalChunks} that have not arrived yet, inclusive on both ends.
+     */
+    public List<ChunkRangeResponse> missingRanges(String sessionId, int totalChunks) {
+        BitSet bits = peek(sessionId);
+        List<ChunkRangeResponse> ranges = new ArrayList<>();
+        synchronized (bits) {
+            int from = bits.nextClearBit(0);
+            while (from < totalChunks) {
+                int next = bits.nextSetBit(from);
+                int to = (next < 0 || next > totalChunks ? totalChunks : next) - 1;
+                ranges.add(new ChunkRangeResponse(from, to));
+                from = bits.nextClearBit(to + 1);
+            }
+        }
+        return ranges;
+    }
+
+    public void forget(String sessionId) {
+        received.remove(sessionId);
+    }
+
+    /**
+     * Start over: no chunk of the session counts as received any more, in memory and on the session.
+     */
+    public void reset(String sessionId) {
+        received.remove(sessionId);
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(sessionId)),
+                new Update().unset("receivedChunks").set("uploadedChunks", 0),
+                UploadSession.class);
+    }
+
+    @Scheduled(fixedDelayString = "${icurff.upload.tracker.sweep-ms:300000}")
+    public void evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleMinutes * 60_000;
+        for (String sessionId : received.keySet()) {
+            // atomic with track(), a chunk arriving meanwhile keeps its entry
+            received.computeIfPresent(sessionId, (key, tracked) -> tracked.touched < cutoff ? null : tracked);
+        }
+    }
+
+    /**
+     * The bitmap of a session that is receiving chunks, kept in memory from now on.
+     */
+    private BitSet track(String sessionId) {
+        return received.compute(sessionId, (key, tracked) -> {
+            Tracked current = tracked != null ? tracked : new Tracked(load(key));
+            current.touched = System.currentTimeMillis();
+            return current;
+        }).bits;
+    }
+
+    /**
+     * The bitmap of a session for reading; status polls do not keep sessions in memory.
+     */
+    private BitSet peek(String sessionId) {
+        Tracked tracked = received.get(sessionId);
+        return tracked != null ? tracked.bits : load(sessionId);
+    }
+
+    private BitSet load(String sessionId) {
+        UploadSession session = mongoTemplate.findById(sessionId, UploadSession.class);
+        return session != null && session.getReceivedChunks() != null
+                ? BitSet.valueOf(session.getReceivedChunks())
+                : new BitSet();
+    }
+
+    private static class Tracked {
+        private final BitSet bits;
+        private volatile long touched;
+
+        private Tracked(BitSet bits) {
+            this.bits = bits;
+        }
+    }
+}
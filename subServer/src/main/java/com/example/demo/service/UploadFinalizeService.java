@@ -0,0 +1,107 @@
+package com.example.demo.service;
+
+import com.example.demo.model.EUploadStatus;
+import com.example.demo.model.UploadSession;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.util.Locale;
+
+/**
+ * Finalizes finished uploads off the request thread. The last chunk only claims the session (FINALIZING) and
+ * queues the merge, probe and thumbnail on a small bounded executor; the session ends up COMPLETED with the id of
+ * the new video, or FAILED with the reason.
+ */
+@Slf4j
+@Service
+public class UploadFinalizeService {
+
+    @Autowired
+    private VideoService videoService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private UploadChunkTracker uploadChunkTracker;
+
+    @Autowired
+    private EarlyIngestService earlyIngestService;
+
+    private final ThreadPoolTaskExecutor executor;
+
+    public UploadFinalizeService(@Value("${icurff.upload.finalize.threads:2}") int threads,
+                                 @Value("${icurff.upload.finalize.queue-capacity:50}") int queueCapacity) {
+        // not a bean on purpose, @Async work must not end up queued behind merges
+        executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(Math.max(1, threads));
+        executor.setMaxPoolSize(Math.max(1, threads));
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("upload-finalize-");
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.initialize();
+    }
+
+    /**
+     * Queue finalization of an upload. A session that is already finalizing or done is left alone, so a retried
+     * last chunk does not merge twice. Returns false if the executor is saturated and the client should retry.
+     * {@code fileSha256}, if the client declared one, is what the merged file is verified against.
+     */
+    public boolean submit(String username, String sessionId, String fileName, String fileType, Long fileSize, Integer fileDuration,
+                          String fileSha256) {
+        Query claimable = Query.query(Criteria.where("_id").is(sessionId)
+                .and("status").in(EUploadStatus.UPLOADING, EUploadStatus.FAILED));
+        Update claim = new Update().set("status", EUploadStatus.FINALIZING).unset("error");
+        if (fileSha256 != null && !fileSha256.isBlank()) {
+            claim.set("fileSha256", fileSha256.trim().toLowerCase(Locale.ROOT));
+        }
+        if (mongoTemplate.updateFirst(claimable, claim, UploadSession.class).getModifiedCount() == 0) {
+            log.info("Upload {} is already being finalized", sessionId);
+            return true;
+        }
+
+        try {
+            executor.execute(() -> finalizeUpload(username, sessionId, fileName, fileType, fileSize, fileDuration));
+            return true;
+        } catch (TaskRejectedException e) {
+            log.warn("Finalization queue is full, upload {} has to retry its last chunk", sessionId);
+            setStatus(sessionId, new Update().set("status", EUploadStatus.UPLOADING));
+            return false;
+        }
+    }
+
+    private void finalizeUpload(String username, String sessionId, String fileName, String fileType, Long fileSize, Integer fileDuration) {
+        long startedAt = System.currentTimeMillis();
+        try {
+            String videoId = videoService.mergeChunks(username, sessionId, fileName, fileType, fileSize, fileDuration);
+            setStatus(sessionId, new Update().set("status", EUploadStatus.COMPLETED).set("videoId", videoId));
+            uploadChunkTracker.forget(sessionId);
+            log.info("Upload {} finalized as video {} in {} ms", sessionId, videoId, System.currentTimeMillis() - startedAt);
+        } catch (Exception e) {
+            log.error("Finalizing upload {} failed", sessionId, e);
+            earlyIngestService.cancel(sessionId);
+            // the bitmap is on the session, a retry reads it back
+            uploadChunkTracker.forget(sessionId);
+            setStatus(sessionId, new Update().set("status", EUploadStatus.FAILED)
+                    .set("error", e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+        }
+    }
+
+    private void setStatus(String sessionId, Update update) {
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(sessionId)), update, UploadSession.class);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
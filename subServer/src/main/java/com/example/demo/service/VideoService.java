@@ -1,26 +1,48 @@
 package com.example.demo.service;
 
+import com.example.demo.exception.ChunkIntegrityException;
 import com.example.demo.model.EUploadStatus;
 import com.example.demo.model.EVideoResolution;
 import com.example.demo.model.EVideoPrivacy;
+import com.example.demo.model.LadderRung;
+import com.example.demo.model.MediaInfo;
 import com.example.demo.model.UploadSession;
 import com.example.demo.model.Video;
 import com.example.demo.repository.UploadSessionRepository;
 import com.example.demo.repository.VideoRepository;
+import com.example.demo.util.ChecksumChannel;
+import com.example.demo.util.ChunkChecksum;
 import com.example.demo.util.FFmpegUtil;
+import com.example.demo.util.StoryboardUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Service
@@ -32,6 +54,45 @@ public class VideoService {
     @Value("${icurff.app.location}")
     private String serverLocation;
 
+    // Transcode all renditions from one decode instead of one task per resolution
+    @Value("${icurff.transcode.ladder:true}")
+    private boolean ladderTranscode;
+
+    // Long uploads are split at keyframes and the parts transcoded in parallel
+    @Value("${icurff.transcode.chunked.enabled:false}")
+    private boolean chunkedTranscode;
+
+    @Value("${icurff.transcode.chunked.min-duration-seconds:600}")
+    private int chunkedMinDurationSeconds;
+
+    // Encode one low rendition first, at top queue priority, so the video becomes playable early
+    @Value("${icurff.transcode.fast-start.enabled:true}")
+    private boolean fastStart;
+
+    @Value("${icurff.transcode.fast-start.height:360}")
+    private int fastStartHeight;
+
+    // Chunks are written at their offset in one preallocated file instead of separate chunk files
+    @Value("${icurff.upload.positional-writes:true}")
+    private boolean positionalWrites;
+
+    public static final String ASSEMBLY_FILE = "upload.bin";
+    // standard renditions, highest first
+    private static final int[] RENDITION_HEIGHTS = {1080, 720, 480, 360, 240};
+    // hls_time of every rendition; encoded renditions force a keyframe at each multiple of it
+    private static final double SEGMENT_SECONDS = 10;
+
+    // Renditions the source already matches are packaged with stream copy instead of re-encoded
+    @Value("${icurff.transcode.remux.enabled:true}")
+    private boolean remuxPassthrough;
+
+    @Value("${icurff.transcode.remux.max-gop-seconds:5}")
+    private double remuxMaxGopSeconds;
+
+    // applies on top of the planned rung's maxrate, and alone to rungs without one
+    @Value("${icurff.transcode.remux.max-bitrate-kbps:8000}")
+    private long remuxMaxBitrateKbps;
+
     @Autowired
     private VideoRepository videoRepository;
 
@@ -44,10 +105,35 @@ public class VideoService {
     @Autowired
     private SupabaseImageService supabaseImageService;
 
+    @Autowired
+    private ChunkedTranscodeService chunkedTranscodeService;
+
+    @Autowired
+    private LadderPlannerService ladderPlannerService;
+
+    @Autowired
+    private ContentDedupService contentDedupService;
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
 
-    public String addNewVideo(String username, String title, Integer duration) {
+    @Autowired
+    private EarlyIngestService earlyIngestService;
+
+    @Autowired
+    private MasterPlaylistService masterPlaylistService;
+
+    @Autowired
+    private EncoderPresetService encoderPresetService;
+
+    @Autowired
+    private UploadChunkTracker uploadChunkTracker;
+
+
+    public String addNewVideo(String username, String sessionId, String title, Integer duration) {
         Video vid = new Video();
         vid.setUsername(username);
+        vid.setSessionId(sessionId);
         vid.setTitle(title);
         vid.setDuration(duration);
         Set<String> initialLocations = new java.util.HashSet<>();
@@ -59,72 +145,296 @@ public class VideoService {
     }
 
 
-    public void saveChunk(String username, String sessionId, int chunkIndex, MultipartFile chunkFile) throws IOException {
+    public long saveChunk(String username, String sessionId, int chunkIndex, int totalChunks, Long fileSize, Long chunkSize,
+                          MultipartFile chunkFile, ChunkChecksum expected) throws IOException {
+        try (InputStream in = chunkFile.getInputStream()) {
+            return saveChunk(username, sessionId, chunkIndex, totalChunks, fileSize, chunkSize, in, chunkFile.getSize(), expected);
+        }
+    }
+
+    /**
+     * Store {@code length} bytes of a chunk read from {@code body}. Returns the CRC32C of the stored bytes,
+     * computed while they are written. If the client declared checksums and they do not match, the chunk is not
+     * counted and a {@link ChunkIntegrityException} asks for it again.
+     */
+    public long saveChunk(String username, String sessionId, int chunkIndex, int totalChunks, Long fileSize, Long chunkSize,
+                          InputStream body, long length, ChunkChecksum expected) throws IOException {
+        if (chunkIndex < 0 || chunkIndex >= totalChunks) {
+            throw new IllegalArgumentException("Chunk index " + chunkIndex + " is outside 0.." + (totalChunks - 1));
+        }
         Path chunkDir = Path.of(storageBaseDir, "uploads", username, sessionId);
         Files.createDirectories(chunkDir);
+        UploadSession session = uploadSessionRepository.findById(sessionId).orElse(null);
+        if (fileSize != null && fileSize > 0 && writesInPlace(session, sessionId, chunkDir)) {
+            return writeChunkInPlace(session, sessionId, chunkDir.resolve(ASSEMBLY_FILE), chunkIndex, totalChunks, fileSize,
+                    chunkSize, body, length, expected);
+        }
         Path chunkPath = chunkDir.resolve(String.format("chunk_%06d", chunkIndex));
-        InputStream in = chunkFile.getInputStream();
-        Files.copy(in, chunkPath, StandardCopyOption.REPLACE_EXISTING);
+        MessageDigest content = contentDedupService.continueAt(sessionId, chunkIndex);
+        // written next to the chunk and moved over it once verified, a bad resend leaves a good chunk alone
+        Path incoming = Files.createTempFile(chunkDir, "incoming_", ".part");
+        ChecksumChannel in;
+        try {
+            try (FileChannel out = FileChannel.open(incoming, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                in = transfer(body, out, 0, length, chunkIndex, expected, content);
+            }
+            verify(in, chunkIndex, expected);
+            Files.move(incoming, chunkPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(incoming);
+        }
+        contentDedupService.chunkWritten(sessionId, chunkIndex, chunkPath, 0, length, content);
+        return in.getChecksum();
     }
 
-    public void mergeChunks(String username, String sessionId, String fileName, String fileType, Long fileSize, Integer fileDuration) throws IOException {
-        // Add new video
-        String vidId =  addNewVideo(username, fileName, fileDuration);
+    /**
+     * Write a chunk straight to its place in the upload file, preallocated to the full size by the first chunk.
+     * Every chunk but the last has the session's chunk size, the last one ends at fileSize, so chunks may
+     * arrive in any order and the finished file needs no merge.
+     */
+    private long writeChunkInPlace(UploadSession session, String sessionId, Path target, int chunkIndex, int totalChunks,
+                                   long fileSize, Long chunkSize, InputStream body, long length, ChunkChecksum expected) throws IOException {
+        boolean last = chunkIndex == totalChunks - 1;
+        long size = knownChunkSize(session, sessionId, chunkSize != null && chunkSize > 0 ? chunkSize : (last ? -1 : length));
+        long offset = last ? fileSize - length : chunkIndex * size;
+        boolean fits = chunkIndex >= 0 && chunkIndex < totalChunks && offset >= 0 && offset + length <= fileSize
+                && (last ? size <= 0 || offset == chunkIndex * size : length == size);
+        if (!fits) {
+            throw new IllegalArgumentException("Chunk " + chunkIndex + " of " + length + " bytes does not fit a "
+                    + fileSize + " byte upload split into " + totalChunks + " chunks of " + size + " bytes");
+        }
 
-        Path chunkDir = Path.of(storageBaseDir, "uploads", username, sessionId);
-        Path outputVideoPath = Path.of(
-                storageBaseDir, "outputs", username,"videos", vidId,"raw", fileName);
-        Files.createDirectories(outputVideoPath.getParent());
+        MessageDigest content = contentDedupService.continueAt(sessionId, chunkIndex);
+        ChecksumChannel in;
+        try {
+            try (RandomAccessFile file = new RandomAccessFile(target.toFile(), "rw")) {
+                // sparse where the filesystem supports it; later chunks only fill in their range
+                if (file.length() < fileSize) {
+                    file.setLength(fileSize);
+                }
+                in = transfer(body, file.getChannel(), offset, length, chunkIndex, expected, content);
+            }
+            verify(in, chunkIndex, expected);
+        } catch (IOException | RuntimeException e) {
+            // the range may hold part of the bad bytes now; if it was received before, it has to come again
+            uploadChunkTracker.unmark(sessionId, chunkIndex);
+            contentDedupService.chunkRejected(sessionId, chunkIndex);
+            throw e;
+        }
+        contentDedupService.chunkWritten(sessionId, chunkIndex, target, offset, length, content);
+        return in.getChecksum();
+    }
 
-        try (var out = Files.newOutputStream(outputVideoPath)) {
-            Files.list(chunkDir)
-                    .filter(p -> p.getFileName().toString().startsWith("chunk_"))
-                    .sorted(Comparator.comparing(Path::getFileName))
+    private void deleteChunkDir(Path chunkDir) {
+        try {
+            Files.walk(chunkDir)
+                    .sorted(Comparator.reverseOrder())
                     .forEach(p -> {
-                        try (var in = Files.newInputStream(p)) {
-                            in.transferTo(out);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
+                        try {
+                            Files.deleteIfExists(p);
+                        } catch (IOException ignored) {
+                            // ignore cleanup errors
                         }
                     });
+        } catch (IOException ignored) {
+
         }
+    }
+
+    private ChecksumChannel transfer(InputStream body, FileChannel out, long offset, long length, int chunkIndex,
+                                     ChunkChecksum expected, MessageDigest content) throws IOException {
+        ChecksumChannel in = new ChecksumChannel(Channels.newChannel(body), expected != null && expected.wantsSha256(), content);
+        long written = 0;
+        while (written < length) {
+            long n = out.transferFrom(in, offset + written, length - written);
+            if (n <= 0) break;
+            written += n;
+        }
+        if (written != length) {
+            throw new ChunkIntegrityException(chunkIndex,
+                    "Chunk " + chunkIndex + " ended after " + written + " of " + length + " bytes");
+        }
+        return in;
+    }
 
+    private void verify(ChecksumChannel in, int chunkIndex, ChunkChecksum expected) {
+        if (expected == null) return;
+        String mismatch = expected.mismatch(in.getChecksum(), in.getSha256());
+        if (mismatch != null) {
+            log.warn("Rejecting chunk {}: {}", chunkIndex, mismatch);
+            throw new ChunkIntegrityException(chunkIndex, "Chunk " + chunkIndex + " is corrupt (" + mismatch + "), send it again");
+        }
+    }
+
+    /**
+     * Whether the chunks of a session are written in place. The first chunk decides and records it on the session,
+     * so changing icurff.upload.positional-writes does not split an upload in flight across both layouts. A session
+     * that started before the layout was recorded keeps the one its files on disk show.
+     */
+    private boolean writesInPlace(UploadSession session, String sessionId, Path chunkDir) throws IOException {
+        if (session != null && session.getPositionalWrites() != null) {
+            return session.getPositionalWrites();
+        }
+        boolean inPlace = positionalWrites;
+        if (Files.exists(chunkDir.resolve(ASSEMBLY_FILE))) {
+            inPlace = true;
+        } else {
+            try (var files = Files.list(chunkDir)) {
+                if (files.anyMatch(p -> p.getFileName().toString().startsWith("chunk_"))) {
+                    inPlace = false;
+                }
+            }
+        }
+        long recorded = mongoTemplate.updateFirst(
+                Query.query(Criteria.where("_id").is(sessionId).and("positionalWrites").isNull()),
+                new Update().set("positionalWrites", inPlace),
+                UploadSession.class).getModifiedCount();
+        if (recorded == 0) {
+            // another chunk of the session got there first
+            UploadSession current = uploadSessionRepository.findById(sessionId).orElse(null);
+            if (current != null && current.getPositionalWrites() != null) {
+                return current.getPositionalWrites();
+            }
+        }
+        return inPlace;
+    }
+
+    /**
+     * The chunk size of a session: the one recorded by its first full chunk, or {@code candidate} if none was yet.
+     */
+    private long knownChunkSize(UploadSession session, String sessionId, long candidate) {
+        if (session != null && session.getChunkSize() != null) {
+            return session.getChunkSize();
+        }
+        if (candidate > 0) {
+            mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("_id").is(sessionId).and("chunkSize").isNull()),
+                    new Update().set("chunkSize", candidate),
+                    UploadSession.class);
+        }
+        return candidate;
+    }
+
+    /**
+     * Merge the chunks of a finished upload, then probe, thumbnail and queue its renditions.
+     * Returns the id of the new video. A retry after a failed finalization continues with the video and the
+     * merged file of the earlier attempt.
+     */
+    public String mergeChunks(String username, String sessionId, String fileName, String fileType, Long fileSize, Integer fileDuration) throws IOException {
         UploadSession uploadSession = uploadSessionRepository.findById(sessionId).orElse(null);
         ;
         assert uploadSession != null;
+
+        String vidId;
+        if (uploadSession.getVideoId() != null && videoRepository.existsById(uploadSession.getVideoId())) {
+            vidId = uploadSession.getVideoId();
+        } else {
+            // Add new video
+            vidId = addNewVideo(username, sessionId, fileName, fileDuration);
+            // recorded right away, so a retry does not leave this one behind as an orphan
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(sessionId)),
+                    new Update().set("videoId", vidId), UploadSession.class);
+        }
+
+        Path chunkDir = Path.of(storageBaseDir, "uploads", username, sessionId);
+        Path outputVideoPath = Path.of(
+                storageBaseDir, "outputs", username,"videos", vidId,"raw", fileName);
+        Files.createDirectories(outputVideoPath.getParent());
+
+        Path assembled = chunkDir.resolve(ASSEMBLY_FILE);
+        List<Path> chunks = List.of();
+        if (!Files.exists(assembled) && Files.isDirectory(chunkDir)) {
+            try (var files = Files.list(chunkDir)) {
+                chunks = files.filter(p -> p.getFileName().toString().startsWith("chunk_"))
+                        .sorted(Comparator.comparing(Path::getFileName))
+                        .toList();
+            }
+        }
+        if (Files.exists(assembled)) {
+            // chunks were written in place (or appended over tus), the upload is already one file
+            Files.move(assembled, outputVideoPath, StandardCopyOption.REPLACE_EXISTING);
+        } else if (chunks.isEmpty() && Files.exists(outputVideoPath)) {
+            log.info("Upload {} was merged by an earlier attempt", sessionId);
+        } else {
+            try (var out = Files.newOutputStream(outputVideoPath)) {
+                chunks.forEach(p -> {
+                    try (var in = Files.newInputStream(p)) {
+                        in.transferTo(out);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+            }
+        }
+
+        // incremental over the chunks as they arrived, the merged file is only read again after a restart
+        String contentHash = contentDedupService.finish(sessionId, outputVideoPath);
+        String expectedHash = uploadSession.getFileSha256();
+        if (expectedHash != null && !expectedHash.equalsIgnoreCase(contentHash)) {
+            deleteVideo(username, vidId);
+            deleteChunkDir(chunkDir);
+            // nothing of the upload is left, every chunk has to be sent again
+            uploadChunkTracker.reset(sessionId);
+            mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(sessionId)),
+                    new Update().unset("videoId").unset("uploadOffset").unset("positionalWrites"),
+                    UploadSession.class);
+            throw new IOException("Upload is corrupt: SHA-256 is " + contentHash + ", expected " + expectedHash
+                    + ", start the upload again");
+        }
+
         uploadSession.setFileName(fileName);
         uploadSession.setFileType(fileType);
         uploadSession.setFileSize(fileSize);
         uploadSession.setDuration(fileDuration);
-        uploadSession.setStatus(EUploadStatus.COMPLETED);
         uploadSessionRepository.save(uploadSession);
 
 
-        try {
-            Files.walk(chunkDir)
-                    .sorted(Comparator.reverseOrder())
-                    .forEach(p -> {
-                        try {
-                            Files.deleteIfExists(p);
-                        } catch (IOException ignored) {
-                            // ignore cleanup errors
-                        }
-                    });
-        } catch (IOException ignored) {
+        deleteChunkDir(chunkDir);
+        System.out.println(outputVideoPath.toAbsolutePath());
+        Path videoOutputDir = Path.of(storageBaseDir, "outputs", username, "videos", vidId);
+
+        // a re-upload of a file this server already transcoded reuses its renditions
+        Video canonical = contentDedupService.findReusable(contentHash);
+        // registered by an earlier attempt of this upload
+        Video reusable = canonical != null && !canonical.getId().equals(vidId) ? canonical : null;
+        contentDedupService.register(contentHash, vidId);
+        if (reusable != null) {
+            log.info("Video {} has the same content as {}, linking its renditions", vidId, reusable.getId());
+            contentDedupService.linkRenditions(reusable, videoOutputDir, outputVideoPath);
+            linkVideo(vidId, reusable, contentHash);
+        }
 
+        MediaInfo mediaInfo;
+        if (reusable != null && reusable.getMediaInfo() != null) {
+            mediaInfo = reusable.getMediaInfo();
+        } else {
+            try {
+                mediaInfo = FFmpegUtil.probe(outputVideoPath.toAbsolutePath().toString());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Probing interrupted", e);
+            }
         }
-        System.out.println(outputVideoPath.toAbsolutePath());
-        int[] resolution = FFmpegUtil.getVideoResolution(outputVideoPath.toAbsolutePath().toString());
+        // trust the probe over the duration reported by the client
+        Integer duration = mediaInfo.getDuration() != null
+                ? Integer.valueOf((int) Math.round(mediaInfo.getDuration()))
+                : fileDuration;
+        videoRepository.findById(vidId).ifPresent(video -> {
+            video.setMediaInfo(mediaInfo);
+            video.setDuration(duration);
+            video.setContentHash(contentHash);
+            videoRepository.save(video);
+        });
 
         // Generate thumbnail
         Path thumbnailPath = Path.of(storageBaseDir, "outputs", username,"videos", vidId, "thumbnail.jpg");
         Files.createDirectories(thumbnailPath.getParent());
 
         double thumbnailSecond = 1.0;
-        if (fileDuration != null && fileDuration > 0) {
+        if (duration != null && duration > 0) {
             // Pick a frame near the middle while staying within the video duration bounds
-            double midPoint = fileDuration / 2.0;
-            double maxAllowed = Math.max(fileDuration - 1, 0.5);
+            double midPoint = duration / 2.0;
+            double maxAllowed = Math.max(duration - 1, 0.5);
             thumbnailSecond = Math.max(0.5, Math.min(midPoint, maxAllowed));
         }
 
@@ -160,28 +470,218 @@ public class VideoService {
             log.error("Failed to generate thumbnail for video {}: {}", vidId, e.getMessage());
         }
 
-//        int width = resolution[0];
-        int height = resolution[1];
-        System.out.println(height);
-        // Define standard resolutions
-        int[] resolutionList = {1080, 720, 480, 360, 240};
-        
+        // the thumbnail is the only thing a linked video gets of its own, it can be replaced per video
+        if (reusable != null) {
+            earlyIngestService.cancel(sessionId);
+            return vidId;
+        }
+
+        int height = mediaInfo.getDisplayHeight();
         System.out.println("Input video height: " + height);
-        
-        for (int res : resolutionList) {
-            System.out.println("Checking resolution: " + res + " against height: " + height);
-            // Only generate resolutions that are less than or equal to the input video's height
-            if (res <= height) {
-                System.out.println("Queueing transcoding task for resolution: " + res);
-                Path processedVideoPath = Path.of(
-                        storageBaseDir, "outputs", username,"videos", vidId, String.valueOf(res));
-
-                taskPublisherService.publishTranscodeTask(vidId, outputVideoPath.toString(), processedVideoPath.toString(), String.valueOf(res));
-            } else {
-                System.out.println("Skipping resolution " + res + " because it is higher than input height " + height);
+
+        List<Integer> planned = renditionsFor(height);
+        if (planned.isEmpty()) {
+            log.warn("Video {} is smaller than the lowest rendition, nothing to transcode", vidId);
+            return vidId;
+        }
+
+        List<LadderRung> ladder = ladderPlannerService.plan(outputVideoPath.toString(), mediaInfo, planned, vidId);
+        planned = ladder.stream().map(LadderRung::getHeight).collect(Collectors.toCollection(ArrayList::new));
+        videoRepository.findById(vidId).ifPresent(video -> {
+            video.setLadder(ladder);
+            videoRepository.save(video);
+        });
+
+        if (mediaInfo.isHasAudio()) {
+            // one audio rendition for the whole ladder; the directory tells the master playlist to wait for it
+            Path audioDir = videoOutputDir.resolve(MasterPlaylistService.AUDIO_DIR);
+            Files.createDirectories(audioDir);
+            taskPublisherService.publishAudioTask(vidId, outputVideoPath.toString(), audioDir.toString(),
+                    canCopyAudio(mediaInfo), mediaInfo.getDuration());
+        }
+        // the fast-start rendition may already have been encoded while the file was uploading
+        Integer early = earlyIngestService.adopt(sessionId, planned, videoOutputDir,
+                rendition -> earlyRenditionReady(vidId, videoOutputDir, rendition),
+                rendition -> publishRenditions(vidId, outputVideoPath, videoOutputDir, List.of(rendition), mediaInfo, null,
+                        TaskPublisherService.PRIORITY_FAST_START));
+        if (early != null) {
+            planned.remove(early);
+        }
+        if (remuxPassthrough) {
+            for (LadderRung rung : ladder) {
+                int res = rung.getHeight();
+                if (!planned.contains(res) || !canRemux(mediaInfo, rung)) continue;
+                // the source already is this rendition, packaging it costs next to no CPU
+                System.out.println("Queueing remux for resolution: " + res);
+                planned.remove(Integer.valueOf(res));
+                taskPublisherService.publishRemuxTask(vidId, outputVideoPath.toString(),
+                        videoOutputDir.resolve(String.valueOf(res)).toString(), res, mediaInfo.getDuration());
+            }
+        }
+
+        // sprites and the hover clip ride along with the first ladder task that decodes the whole source
+        Path previewDir = videoOutputDir.resolve(StoryboardUtil.PREVIEW_DIR);
+        boolean previewsQueued = false;
+        if (fastStart && early == null && !planned.isEmpty()) {
+            // a cheap low rendition jumps the queue so the video is playable while the rest encode
+            int first = planned.contains(fastStartHeight) ? fastStartHeight : planned.get(planned.size() - 1);
+            planned.remove(Integer.valueOf(first));
+            System.out.println("Queueing fast-start rendition: " + first);
+            previewsQueued = publishRenditions(vidId, outputVideoPath, videoOutputDir, List.of(first), mediaInfo,
+                    previewDir, TaskPublisherService.PRIORITY_FAST_START);
+        }
+
+        if (!planned.isEmpty()) {
+            boolean chunked = false;
+            if (ladderTranscode && chunkedTranscode && duration != null && duration >= chunkedMinDurationSeconds) {
+                System.out.println("Queueing chunked transcoding for resolutions: " + planned);
+                try {
+                    chunkedTranscodeService.start(vidId, outputVideoPath, videoOutputDir, planned);
+                    chunked = true;
+                } catch (Exception e) {
+                    log.error("Chunked transcoding setup failed for video {}, falling back to a single ladder task: {}", vidId, e.getMessage());
+                }
+            }
+            if (!chunked) {
+                previewsQueued |= publishRenditions(vidId, outputVideoPath, videoOutputDir, planned, mediaInfo,
+                        previewsQueued ? null : previewDir, TaskPublisherService.PRIORITY_NORMAL);
+            }
+        }
+
+        if (!previewsQueued) {
+            // remuxed, chunked or per-resolution renditions never decode the full source in one pass
+            taskPublisherService.publishPreviewTask(vidId, outputVideoPath.toString(), previewDir.toString(), mediaInfo.getDuration());
+        }
+        return vidId;
+    }
+
+    /**
+     * Give a deduplicated video the renditions, ladder and previews of the video it shares content with.
+     */
+    private void linkVideo(String vidId, Video canonical, String contentHash) {
+        videoRepository.findById(vidId).ifPresent(video -> {
+            video.setContentHash(contentHash);
+            video.setLadder(canonical.getLadder());
+            video.getResolutions().addAll(canonical.getResolutions());
+            video.setPlayable(true);
+            video.setPlayableDate(Instant.now());
+            videoRepository.save(video);
+        });
+        if (canonical.getStoryboard() != null && !canonical.getStoryboard().isEmpty()) {
+            updatePreviews(vidId);
+        }
+    }
+
+    /**
+     * A rendition can be produced by stream copy when the source is H.264 (4:2:0, no rotation), has exactly
+     * the rendition's height, stays within the rate the planner gave the rung, and places keyframes on a fixed
+     * cadence that divides the segment length, so its segments line up with those of the encoded renditions.
+     */
+    boolean canRemux(MediaInfo mediaInfo, LadderRung rung) {
+        if (!"h264".equals(mediaInfo.getVideoCodec())) return false;
+        if (mediaInfo.getPixelFormat() != null && !mediaInfo.getPixelFormat().equals("yuv420p")) return false;
+        if (mediaInfo.getRotation() != null && mediaInfo.getRotation() != 0) return false;
+        if (mediaInfo.getHeight() == null || mediaInfo.getHeight() != rung.getHeight()) return false;
+
+        Long bitrate = mediaInfo.getVideoBitrate() != null ? mediaInfo.getVideoBitrate() : mediaInfo.getBitrate();
+        long maxKbps = rung.getMaxrate() > 0 ? rung.getMaxrate() : remuxMaxBitrateKbps;
+        if (rung.getMaxrate() > 0 && remuxMaxBitrateKbps > 0) {
+            maxKbps = Math.min(maxKbps, remuxMaxBitrateKbps);
+        }
+        if (maxKbps > 0 && (bitrate == null || bitrate > maxKbps * 1000L)) return false;
+
+        Double interval = mediaInfo.getKeyframeInterval();
+        Double maxInterval = mediaInfo.getMaxKeyframeInterval();
+        if (interval == null || maxInterval == null || maxInterval > remuxMaxGopSeconds) return false;
+        // within a frame: the longest gap equals the average one only if every gap is the same
+        double tolerance = mediaInfo.getFrameRate() != null && mediaInfo.getFrameRate() > 0
+                ? 1 / mediaInfo.getFrameRate() : 0.05;
+        if (maxInterval - interval > tolerance) return false;
+        double perSegment = SEGMENT_SECONDS / interval;
+        return Math.abs(perSegment - Math.round(perSegment)) * interval <= tolerance;
+    }
+
+    /**
+     * AAC stereo or mono at a modest bitrate is packaged as is, anything else is encoded once.
+     */
+    boolean canCopyAudio(MediaInfo mediaInfo) {
+        return "aac".equals(mediaInfo.getAudioCodec())
+                && mediaInfo.getAudioChannels() != null && mediaInfo.getAudioChannels() <= 2
+                && (mediaInfo.getAudioBitrate() == null || mediaInfo.getAudioBitrate() <= 192_000);
+    }
+
+    /**
+     * A rendition encoded while the file was uploading was adopted, publish it like a finished encode.
+     */
+    private void earlyRenditionReady(String vidId, Path videoOutputDir, int height) {
+        try {
+            masterPlaylistService.rebuild(videoOutputDir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        encoderPresetService.recordPreset(vidId, List.of(height), encoderPresetService.getDefaultPreset());
+        updateVideoResolutionAndServer(vidId, height, serverLocation);
+    }
+
+    /**
+     * Queue the given renditions. Returns true if the previews were attached to the queued ladder task.
+     */
+    private boolean publishRenditions(String vidId, Path rawVideoPath, Path videoOutputDir, List<Integer> heights,
+                                      MediaInfo mediaInfo, Path previewDir, int priority) {
+        if (ladderTranscode) {
+            System.out.println("Queueing ladder transcoding task for resolutions: " + heights);
+            taskPublisherService.publishLadderTranscodeTask(vidId, rawVideoPath.toString(), videoOutputDir.toString(), heights,
+                    previewDir != null ? previewDir.toString() : null, mediaInfo.getDuration(), priority);
+            return previewDir != null;
+        }
+        for (Integer res : heights) {
+            System.out.println("Queueing transcoding task for resolution: " + res);
+            Path processedVideoPath = videoOutputDir.resolve(String.valueOf(res));
+            taskPublisherService.publishTranscodeTask(vidId, rawVideoPath.toString(), processedVideoPath.toString(),
+                    String.valueOf(res), mediaInfo.getDuration(), priority);
+        }
+        return false;
+    }
+
+    /**
+     * Point the video at its storyboard and hover clip once they are on disk.
+     */
+    public void updatePreviews(String videoId) {
+        videoRepository.findById(videoId).ifPresent(video -> {
+            String normalizedServer = serverLocation;
+            if (!normalizedServer.startsWith("http://") && !normalizedServer.startsWith("https://")) {
+                normalizedServer = "http://" + normalizedServer;
             }
+            String base = normalizedServer + "/videos/" + video.getUsername() + "/" + videoId + "/" + StoryboardUtil.PREVIEW_DIR + "/";
+            video.setStoryboard(base + StoryboardUtil.VTT_NAME);
+            video.setPreviewClip(base + StoryboardUtil.HOVER_NAME);
+            videoRepository.save(video);
+        });
+    }
+
+
+    /**
+     * Give the videos linked to this one its freshly generated previews, they were linked before these existed.
+     */
+    public void sharePreviews(String videoId) throws IOException {
+        Video canonical = videoRepository.findById(videoId).orElse(null);
+        if (canonical == null || canonical.getStoryboard() == null) return;
+        for (Video copy : contentDedupService.linkedCopies(canonical)) {
+            if (copy.getStoryboard() != null && !copy.getStoryboard().isEmpty()) continue;
+            contentDedupService.linkPreviews(canonical, copy);
+            updatePreviews(copy.getId());
         }
+    }
 
+    /**
+     * Rate control of each planned rendition keyed by height, empty for videos planned before the ladder planner.
+     */
+    public Map<Integer, LadderRung> getLadder(String videoId) {
+        if (videoId == null || videoId.isEmpty()) return Map.of();
+        return videoRepository.findById(videoId)
+                .map(video -> video.getLadder().stream()
+                        .collect(Collectors.toMap(LadderRung::getHeight, rung -> rung, (a, b) -> a)))
+                .orElse(Map.of());
     }
 
     public void updateVideoResolutionAndServer(String videoId, int resolution, String serverLocation) {
@@ -210,6 +710,12 @@ public class VideoService {
 
         // Add the server location to the set
         video.getServer_locations().add(serverLocation);
+
+        // the first rendition to land makes the video playable
+        if (!video.isPlayable()) {
+            video.setPlayable(true);
+            video.setPlayableDate(Instant.now());
+        }
         System.out.println("Added server location: " + serverLocation);
 
         System.out.println("Before save - resolutions: " + video.getResolutions());
@@ -222,6 +728,71 @@ public class VideoService {
         System.out.println("=== updateVideoResolutionAndServer completed ===");
     }
 
+    /**
+     * The uploaded source kept under {videoDir}/raw, null if it is gone.
+     */
+    public static Path findRawFile(Path videoDir) throws IOException {
+        Path rawDir = videoDir.resolve("raw");
+        if (!Files.isDirectory(rawDir)) return null;
+        try (var files = Files.list(rawDir)) {
+            return files.filter(Files::isRegularFile).findFirst().orElse(null);
+        }
+    }
+
+    /**
+     * Queue renditions again that were lost, e.g. to a crash in the middle of an encode.
+     */
+    public void requeueRenditions(String vidId, Path rawVideoPath, Path videoOutputDir, List<Integer> heights, MediaInfo mediaInfo) {
+        List<Integer> pending = new ArrayList<>(heights);
+        if (remuxPassthrough) {
+            Map<Integer, LadderRung> ladder = getLadder(vidId);
+            for (Integer res : heights) {
+                LadderRung rung = ladder.getOrDefault(res, LadderRung.builder().height(res).build());
+                if (!canRemux(mediaInfo, rung)) continue;
+                pending.remove(res);
+                taskPublisherService.publishRemuxTask(vidId, rawVideoPath.toString(),
+                        videoOutputDir.resolve(String.valueOf(res)).toString(), res, mediaInfo.getDuration());
+            }
+        }
+        if (!pending.isEmpty()) {
+            publishRenditions(vidId, rawVideoPath, videoOutputDir, pending, mediaInfo, null, TaskPublisherService.PRIORITY_NORMAL);
+        }
+    }
+
+    /**
+     * Standard renditions up to the height of the source, never upscaled.
+     */
+    public static List<Integer> renditionsFor(int sourceHeight) {
+        List<Integer> heights = new ArrayList<>();
+        for (int res : RENDITION_HEIGHTS) {
+            if (res <= sourceHeight) {
+                heights.add(res);
+            }
+        }
+        return heights;
+    }
+
+    /**
+     * The video has exactly these renditions on this server, after a re-encode or a reconcile with the disk.
+     */
+    public void replaceResolutions(String videoId, Collection<Integer> heights, String serverLocation) {
+        videoRepository.findById(videoId).ifPresent(video -> {
+            video.getResolutions().clear();
+            for (Integer height : heights) {
+                EVideoResolution resolution = getResolutionEnum(height);
+                if (resolution != null) {
+                    video.getResolutions().add(resolution);
+                }
+            }
+            if (heights.isEmpty()) {
+                video.getServer_locations().remove(serverLocation);
+            } else {
+                video.getServer_locations().add(serverLocation);
+            }
+            videoRepository.save(video);
+        });
+    }
+
     private EVideoResolution getResolutionEnum(int resolution) {
         return switch (resolution) {
             case 240 -> EVideoResolution.P240;
@@ -269,6 +840,7 @@ public class VideoService {
         }
 
         if (video != null) {
+            contentDedupService.release(videoId);
             videoRepository.delete(video);
         }
 
@@ -0,0 +1,88 @@
+package com.example.demo.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * Passes bytes through from another channel and keeps a CRC32C, and optionally a SHA-256, of everything read,
+ * so a chunk is checksummed on its way to disk instead of being read again afterwards. A caller's digest, such as
+ * the running hash of the whole upload, can be fed the same bytes.
+ */
+public class ChecksumChannel implements ReadableByteChannel {
+    private final ReadableByteChannel delegate;
+    private final Checksum checksum = new CRC32C();
+    private final MessageDigest sha256;
+    private final MessageDigest content;
+    private long bytesRead;
+
+    public ChecksumChannel(ReadableByteChannel delegate) {
+        this(delegate, false);
+    }
+
+    public ChecksumChannel(ReadableByteChannel delegate, boolean withSha256) {
+        this(delegate, withSha256, null);
+    }
+
+    /**
+     * {@code content}, if not null, is updated with every byte read and left for the caller to complete.
+     */
+    public ChecksumChannel(ReadableByteChannel delegate, boolean withSha256, MessageDigest content) {
+        this.delegate = delegate;
+        this.content = content;
+        try {
+            this.sha256 = withSha256 ? MessageDigest.getInstance("SHA-256") : null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int read = delegate.read(dst);
+        if (read > 0) {
+            ByteBuffer view = dst.duplicate();
+            view.position(start).limit(start + read);
+            if (sha256 != null) {
+                sha256.update(view.duplicate());
+            }
+            if (content != null) {
+                content.update(view.duplicate());
+            }
+            checksum.update(view);
+            bytesRead += read;
+        }
+        return read;
+    }
+
+    public long getChecksum() {
+        return checksum.getValue();
+    }
+
+    /**
+     * Hex SHA-256 of the bytes read, null unless requested. Completes the digest, call it once at the end.
+     */
+    public String getSha256() {
+        return sha256 != null ? HexFormat.of().formatHex(sha256.digest()) : null;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
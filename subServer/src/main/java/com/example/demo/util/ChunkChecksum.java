@@ -0,0 +1,41 @@
+package com.example.demo.util;
+
+import java.util.Locale;
+
+/**
+ * Checksums a client declared for a chunk, hex encoded; either may be null.
+ */
+public record ChunkChecksum(String crc32c, String sha256) {
+
+    public static ChunkChecksum of(String crc32c, String sha256) {
+        String crc = normalize(crc32c);
+        String sha = normalize(sha256);
+        return crc == null && sha == null ? null : new ChunkChecksum(crc, sha);
+    }
+
+    public boolean wantsSha256() {
+        return sha256 != null;
+    }
+
+    /**
+     * Null if the computed values match, otherwise a description of the first mismatch.
+     */
+    public String mismatch(long actualCrc32c, String actualSha256) {
+        if (crc32c != null && Long.parseUnsignedLong(crc32c, 16) != actualCrc32c) {
+            return String.format("CRC32C is %08x, expected %s", actualCrc32c, crc32c);
+        }
+        if (sha256 != null && !sha256.equals(actualSha256)) {
+            return "SHA-256 is " + actualSha256 + ", expected " + sha256;
+        }
+        return null;
+    }
+
+    private static String normalize(String hex) {
+        if (hex == null || hex.isBlank()) return null;
+        String value = hex.trim().toLowerCase(Locale.ROOT);
+        if (!value.matches("[0-9a-f]+")) {
+            throw new IllegalArgumentException("Checksum is not hex: " + hex);
+        }
+        return value;
+    }
+}
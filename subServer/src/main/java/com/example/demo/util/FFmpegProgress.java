@@ -0,0 +1,13 @@
+package com.example.demo.util;
+
+/**
+ * One progress report from ffmpeg's {@code -progress} output.
+ */
+public record FFmpegProgress(
+        // position reached in the output, seconds
+        double outTimeSeconds,
+        // encoding speed as a multiple of realtime, 0 when ffmpeg has not reported one yet
+        double speed,
+        boolean done
+) {
+}
@@ -0,0 +1,48 @@
+package com.example.demo.util;
+
+import java.util.function.Consumer;
+
+/**
+ * Turns the key=value lines of {@code ffmpeg -progress pipe:1} into {@link FFmpegProgress} reports.
+ * ffmpeg ends every block with {@code progress=continue} (or {@code progress=end}), which is when a report is emitted.
+ * Lines that are not key=value pairs, such as script output, are ignored.
+ */
+public class FFmpegProgressParser implements Consumer<String> {
+    private final Consumer<FFmpegProgress> listener;
+    private double outTimeSeconds;
+    private double speed;
+
+    public FFmpegProgressParser(Consumer<FFmpegProgress> listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void accept(String line) {
+        int eq = line.indexOf('=');
+        if (eq <= 0) return;
+        String key = line.substring(0, eq).trim();
+        String value = line.substring(eq + 1).trim();
+
+        switch (key) {
+            case "out_time_us", "out_time_ms" -> {
+                // despite its name out_time_ms is in microseconds too
+                try {
+                    outTimeSeconds = Long.parseLong(value) / 1_000_000.0;
+                } catch (NumberFormatException ignored) {
+                    // N/A before the first frame
+                }
+            }
+            case "speed" -> {
+                try {
+                    speed = Double.parseDouble(value.replace("x", ""));
+                } catch (NumberFormatException ignored) {
+                    // N/A before the first frame
+                }
+            }
+            case "progress" -> listener.accept(new FFmpegProgress(outTimeSeconds, speed, "end".equals(value)));
+            default -> {
+                // other counters are not used
+            }
+        }
+    }
+}
@@ -1,64 +1,284 @@
 package com.example.demo.util;
 
-import java.io.BufferedReader;
+import com.example.demo.model.LadderRung;
+import com.example.demo.model.MediaInfo;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.function.Consumer;
 
 public class FFmpegUtil {
-    public static int[] getVideoResolution(String videoPath) throws IOException {
+    private static final ObjectMapper JSON = new ObjectMapper();
+    // keyframe cadence is measured over the first 30 seconds of packets
+    private static final String PROBE_PACKET_WINDOW = "%+30";
+
+    public static void transcodeVideo(String videoPath, String outputPath, String resolution, String fileName, int threads,
+                                      String preset, LadderRung rung, String tag,
+                                      Consumer<FFmpegProgress> progressListener) throws IOException, InterruptedException {
+        String commandPath = "src/main/resources/command/transcode_video.sh";
 
-        int[] resolution = new int[2];
+        File outDir = new File(outputPath);
+        if (!outDir.exists()) outDir.mkdirs();
 
-        String commandPath = "src/main/resources/command/get_resolution.sh";
         videoPath = videoPath.replace("\\", "/");
-        ProcessBuilder pb = new ProcessBuilder("bash", commandPath, videoPath);
-//        ProcessBuilder pb = new ProcessBuilder(
-//                "ffprobe", "-v", "error",
-//                "-select_streams", "v:0",
-//                "-show_entries", "stream=width,height",
-//                "-of", "csv=s=x:p=0",
-//                videoPath
-//        );
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        String line = reader.readLine();
-        System.out.println("[FFmpegUtil] Resolution output: " + line);
+        outputPath = outputPath.replace("\\", "/");
+        List<String> command = new ArrayList<>(List.of("bash", commandPath, videoPath, outputPath, resolution, fileName,
+                String.valueOf(threads), preset));
+        if (rung != null && rung.getMaxrate() > 0) {
+            command.add(String.valueOf(rung.getMaxrate()));
+            command.add(String.valueOf(rung.getBufsize()));
+        }
+        runChecked(command, "ffmpeg-" + resolution + "p", tag, progressListener);
+    }
+
+    /**
+     * Same as {@link #transcodeVideo} but the source is read from stdin as {@code input} produces it, so encoding
+     * can start before the whole file exists. Only works for containers that can be read front to back.
+     */
+    public static void transcodeVideoFromPipe(ProcessSupervisor.StdinFeeder input, String outputPath, String resolution,
+                                              String fileName, int threads, String preset, String tag,
+                                              Consumer<FFmpegProgress> progressListener) throws IOException, InterruptedException {
+        String commandPath = "src/main/resources/command/transcode_video.sh";
 
-        if (line == null || !line.contains("x")) {
-            throw new IOException("Failed to get video resolution. Output: " + line);
+        File outDir = new File(outputPath);
+        if (!outDir.exists()) outDir.mkdirs();
+
+        outputPath = outputPath.replace("\\", "/");
+        List<String> command = List.of("bash", commandPath, "pipe:0", outputPath, resolution, fileName,
+                String.valueOf(threads), preset);
+        runChecked(command, "ffmpeg-pipe-" + resolution + "p", tag, progressListener, input);
+    }
+
+    /**
+     * Transcode every rendition of the ladder from a single ffmpeg process.
+     * The source is decoded once and the decoded frames are split into one scaler/encoder per height,
+     * so each rendition ends up in {outputDir}/{height}/{fileName}_{height}p.m3u8 exactly like the
+     * per-resolution script produces it. Renditions are video only, audio is a separate shared rendition.
+     */
+    public static void transcodeLadder(LadderTranscodeOptions options) throws IOException, InterruptedException {
+        List<Integer> heights = options.getHeights();
+        if (heights == null || heights.isEmpty()) {
+            throw new IllegalArgumentException("At least one rendition height is required");
         }
 
-        try {
-            String[] parts = line.split("x");
-            resolution[0] = Integer.parseInt(parts[0].trim()); // width
-            resolution[1] = Integer.parseInt(parts[1].trim()); // height
-        } catch (NumberFormatException e) {
-            throw new IOException("Invalid resolution format: " + line, e);
+        String videoPath = options.getVideoPath().replace("\\", "/");
+        String outputDir = options.getOutputDir().replace("\\", "/");
+        String fileName = options.getFileName();
+        String threads = String.valueOf(options.getThreads());
+        for (Integer height : heights) {
+            Files.createDirectories(Path.of(outputDir, String.valueOf(height)));
+        }
+        String previewDir = options.getPreviewDir() != null ? options.getPreviewDir().replace("\\", "/") : null;
+        if (previewDir != null) {
+            Files.createDirectories(Path.of(previewDir));
+        }
+
+        // [0:v]split=N[s0][s1]...;[s0]scale=-2:1080[v0];[s1]scale=-2:720[v1];...
+        int branches = heights.size() + (previewDir != null ? 2 : 0);
+        // -threads is per encoder and every rung and preview output has one, so the job's budget is
+        // split across them instead of each of them taking all of it
+        String encoderThreads = options.getThreads() > 0
+                ? String.valueOf(Math.max(1, options.getThreads() / branches))
+                : threads;
+        StringBuilder filter = new StringBuilder("[0:v]split=").append(branches);
+        for (int i = 0; i < branches; i++) {
+            filter.append("[s").append(i).append("]");
+        }
+        for (int i = 0; i < heights.size(); i++) {
+            filter.append(";[s").append(i).append("]scale=-2:").append(heights.get(i)).append("[v").append(i).append("]");
+        }
+        if (previewDir != null) {
+            filter.append(';').append(StoryboardUtil.filters("s" + heights.size(), "s" + (heights.size() + 1), options.getDuration()));
+        }
+
+        List<String> command = new ArrayList<>(List.of(
+                "ffmpeg", "-y", "-progress", "pipe:1", "-nostats", "-threads", threads, "-i", videoPath,
+                "-filter_complex", filter.toString(), "-filter_complex_threads", threads));
+        StringBuilder streamMap = new StringBuilder();
+        for (int i = 0; i < heights.size(); i++) {
+            command.add("-map");
+            command.add("[v" + i + "]");
+            if (i > 0) streamMap.append(' ');
+            streamMap.append("v:").append(i).append(",name:").append(heights.get(i));
+        }
+
+        command.addAll(List.of(
+                "-c:v", "libx264", "-preset", options.getPreset(), "-crf", "23", "-threads", encoderThreads,
+                // keep keyframes aligned across renditions so segments line up for ABR switching
+                "-force_key_frames", "expr:gte(t,n_forced*10)",
+                "-sc_threshold", "0"
+        ));
+        // capped CRF: the planner's per-rendition VBV limits, index i is the i-th video output
+        for (int i = 0; i < heights.size(); i++) {
+            LadderRung rung = options.getRungs().get(heights.get(i));
+            if (rung == null || rung.getMaxrate() <= 0) continue;
+            command.addAll(List.of(
+                    "-maxrate:v:" + i, rung.getMaxrate() + "k",
+                    "-bufsize:v:" + i, rung.getBufsize() + "k"));
+        }
+        if (options.getOutputTsOffset() > 0) {
+            command.addAll(List.of("-output_ts_offset", String.format(Locale.US, "%.6f", options.getOutputTsOffset())));
+        }
+        command.addAll(List.of(
+                "-f", "hls",
+                "-hls_time", "10",
+                "-hls_playlist_type", "vod",
+                "-hls_segment_filename", outputDir + "/%v/" + fileName + "_%vp_" + options.getSegmentPrefix() + "%06d.ts",
+                "-var_stream_map", streamMap.toString(),
+                outputDir + "/%v/" + fileName + "_%vp.m3u8"
+        ));
+        if (previewDir != null) {
+            command.addAll(StoryboardUtil.outputs(previewDir, encoderThreads));
         }
 
-        return resolution;
+        runChecked(command, "ffmpeg-ladder", options.getTag(), options.getProgressListener());
+        if (previewDir != null) {
+            StoryboardUtil.writeVtt(Path.of(previewDir), options.getDuration());
+        }
     }
 
-    public static void transcodeVideo(String videoPath, String outputPath, String resolution, String fileName) throws IOException, InterruptedException {
-        String commandPath = "src/main/resources/command/transcode_video.sh";
+    /**
+     * Sprite sheets, storyboard and hover clip on their own, for videos where no ladder pass decodes the full source.
+     */
+    public static void generatePreviews(String videoPath, String previewDir, Double duration, String tag,
+                                        Consumer<FFmpegProgress> progressListener) throws IOException, InterruptedException {
+        videoPath = videoPath.replace("\\", "/");
+        previewDir = previewDir.replace("\\", "/");
+        Files.createDirectories(Path.of(previewDir));
 
-        File outDir = new File(outputPath);
-        if (!outDir.exists()) outDir.mkdirs();
+        List<String> command = new ArrayList<>(List.of(
+                "ffmpeg", "-y", "-progress", "pipe:1", "-nostats", "-i", videoPath,
+                "-filter_complex", "[0:v]split=2[s0][s1];" + StoryboardUtil.filters("s0", "s1", duration)));
+        command.addAll(StoryboardUtil.outputs(previewDir, "0"));
+        runChecked(command, "ffmpeg-previews", tag, progressListener);
+        StoryboardUtil.writeVtt(Path.of(previewDir), duration);
+    }
+
+    /**
+     * Package a source that already matches a rendition into HLS without re-encoding it.
+     * Segments are cut on the source's own keyframes.
+     */
+    public static void remuxToHls(String videoPath, String outputPath, int height, String fileName, String tag,
+                                   Consumer<FFmpegProgress> progressListener) throws IOException, InterruptedException {
+        videoPath = videoPath.replace("\\", "/");
+        outputPath = outputPath.replace("\\", "/");
+        Files.createDirectories(Path.of(outputPath));
+
+        runChecked(List.of(
+                "ffmpeg", "-y", "-progress", "pipe:1", "-nostats", "-i", videoPath,
+                "-map", "0:v:0", "-an",
+                "-c:v", "copy",
+                "-f", "hls",
+                "-hls_time", "10",
+                "-hls_playlist_type", "vod",
+                "-hls_segment_filename", outputPath + "/" + fileName + "_" + height + "p_%06d.ts",
+                outputPath + "/" + fileName + "_" + height + "p.m3u8"
+        ), "ffmpeg-remux-" + height + "p", tag, progressListener);
+    }
 
+    /**
+     * Write the audio-only rendition every video rendition of the upload shares, {outputPath}/{fileName}_audio.m3u8.
+     * With {@code copy} the source AAC track is packaged as is, otherwise it is encoded once to AAC 128k stereo.
+     */
+    public static void transcodeAudio(String videoPath, String outputPath, String fileName, boolean copy, String tag,
+                                      Consumer<FFmpegProgress> progressListener) throws IOException, InterruptedException {
         videoPath = videoPath.replace("\\", "/");
         outputPath = outputPath.replace("\\", "/");
-        ProcessBuilder pb = new ProcessBuilder("bash", commandPath, videoPath, outputPath, resolution, fileName);
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            System.out.println("[ffmpeg] " + line);
+        Files.createDirectories(Path.of(outputPath));
+
+        List<String> command = new ArrayList<>(List.of(
+                "ffmpeg", "-y", "-progress", "pipe:1", "-nostats", "-i", videoPath,
+                "-map", "0:a:0", "-vn"));
+        if (copy) {
+            command.addAll(List.of("-c:a", "copy"));
+        } else {
+            command.addAll(List.of("-c:a", "aac", "-b:a", "128k", "-ac", "2"));
         }
+        command.addAll(List.of(
+                "-f", "hls",
+                "-hls_time", "10",
+                "-hls_playlist_type", "vod",
+                "-hls_segment_filename", outputPath + "/" + fileName + "_audio_%06d.ts",
+                outputPath + "/" + fileName + "_audio.m3u8"
+        ));
+        runChecked(command, "ffmpeg-audio", tag, progressListener);
+    }
 
+    /**
+     * Encode a short window of the source at a low resolution with CRF and report the bitrate it took, in kbit/s.
+     * How many bits the encoder needs for a fixed quality is a cheap measure of how complex the content is.
+     */
+    public static long measureCrfBitrate(String videoPath, int height, int crf, double startSeconds, double seconds,
+                                         String tag) throws IOException, InterruptedException {
+        videoPath = videoPath.replace("\\", "/");
+        Path sample = Files.createTempFile("crf-probe-", ".mkv");
+        double[] encodedSeconds = {0};
+        try {
+            runChecked(List.of(
+                    "ffmpeg", "-y", "-progress", "pipe:1", "-nostats",
+                    "-ss", String.format(Locale.US, "%.3f", Math.max(0, startSeconds)),
+                    "-t", String.format(Locale.US, "%.3f", seconds),
+                    "-i", videoPath,
+                    "-map", "0:v:0", "-an",
+                    "-vf", "scale=-2:" + height,
+                    "-c:v", "libx264", "-preset", "veryfast", "-crf", String.valueOf(crf),
+                    "-f", "matroska", sample.toString()
+            ), "ffmpeg-crf-probe", tag, progress -> encodedSeconds[0] = Math.max(encodedSeconds[0], progress.outTimeSeconds()));
+            if (encodedSeconds[0] <= 0) {
+                throw new IOException("CRF probe encoded nothing from " + videoPath);
+            }
+            return Math.round(Files.size(sample) * 8 / encodedSeconds[0] / 1000);
+        } finally {
+            Files.deleteIfExists(sample);
+        }
+    }
+
+    /**
+     * Split a video into parts of roughly {@code partSeconds} without re-encoding.
+     * Cuts only happen on keyframes, so every part can be transcoded on its own.
+     */
+    public static List<MediaPart> splitAtKeyframes(String videoPath, String partsDir, int partSeconds) throws IOException, InterruptedException {
+        videoPath = videoPath.replace("\\", "/");
+        partsDir = partsDir.replace("\\", "/");
+        Files.createDirectories(Path.of(partsDir));
+        Path partList = Path.of(partsDir, "parts.csv");
+
+        runChecked(List.of(
+                "ffmpeg", "-y", "-i", videoPath,
+                "-map", "0:v:0", "-map", "0:a:0?",
+                "-c", "copy",
+                "-f", "segment",
+                "-segment_time", String.valueOf(partSeconds),
+                "-reset_timestamps", "1",
+                "-segment_list", partList.toString(),
+                "-segment_list_type", "csv",
+                partsDir + "/part_%04d.mkv"
+        ), "ffmpeg-split", null, null);
+
+        // each line: part_0000.mkv,0.000000,120.120000
+        List<MediaPart> parts = new ArrayList<>();
+        for (String line : Files.readAllLines(partList, StandardCharsets.UTF_8)) {
+            String[] fields = line.trim().split(",");
+            if (fields.length < 3) continue;
+            try {
+                parts.add(new MediaPart(parts.size(), Path.of(partsDir, fields[0]).toString(),
+                        Double.parseDouble(fields[1]), Double.parseDouble(fields[2])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid segment list entry: " + line, e);
+            }
+        }
+        if (parts.isEmpty()) {
+            throw new IOException("FFmpeg split produced no parts for " + videoPath);
+        }
+        return parts;
     }
 
     public static void generateThumbnail(String videoPath, String outputPath, double timestampSeconds) throws IOException, InterruptedException {
@@ -69,53 +289,155 @@ public class FFmpegUtil {
 
         String timestamp = String.format(Locale.US, "%.2f", Math.max(0, timestampSeconds));
 
-        ProcessBuilder pb = new ProcessBuilder("bash", commandPath, videoPath, outputPath, timestamp);
-        pb.redirectErrorStream(true);
-        Process process = pb.start();
+        runChecked(List.of("bash", commandPath, videoPath, outputPath, timestamp), "ffmpeg-thumbnail", null, null);
+    }
+
+    /**
+     * Probe a media file once: container, first video and audio stream, plus the keyframe cadence
+     * measured over the first {@code PROBE_PACKET_WINDOW} of packets.
+     */
+    public static MediaInfo probe(String videoPath) throws IOException, InterruptedException {
+        videoPath = videoPath.replace("\\", "/");
+
+        ProcessResult result = ProcessSupervisor.run(List.of(
+                "ffprobe", "-v", "error",
+                "-print_format", "json",
+                "-show_format",
+                "-show_streams",
+                "-read_intervals", PROBE_PACKET_WINDOW,
+                "-show_entries", "packet=stream_index,pts_time,flags",
+                videoPath
+        ), "ffprobe", null, null, true);
+        if (!result.isSuccess()) {
+            throw new IOException(result.describeFailure());
+        }
+        return parseProbeOutput(result.stdout());
+    }
+
+    private static MediaInfo parseProbeOutput(String json) throws IOException {
+        JsonNode root = JSON.readTree(json);
+        JsonNode format = root.path("format");
+        MediaInfo.MediaInfoBuilder info = MediaInfo.builder()
+                .formatName(text(format, "format_name"))
+                .duration(asDouble(format, "duration"))
+                .bitrate(asLong(format, "bit_rate"));
 
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                System.out.println("[ffmpeg-thumbnail] " + line);
+        int videoIndex = -1;
+        boolean hasAudio = false;
+        for (JsonNode stream : root.path("streams")) {
+            String type = stream.path("codec_type").asText();
+            if (videoIndex < 0 && "video".equals(type) && !isAttachedPicture(stream)) {
+                videoIndex = stream.path("index").asInt();
+                info.videoCodec(text(stream, "codec_name"))
+                        .pixelFormat(text(stream, "pix_fmt"))
+                        .width(stream.path("width").asInt())
+                        .height(stream.path("height").asInt())
+                        .rotation(rotationOf(stream))
+                        .frameRate(parseRational(text(stream, "avg_frame_rate")))
+                        .videoBitrate(asLong(stream, "bit_rate"));
+            } else if (!hasAudio && "audio".equals(type)) {
+                hasAudio = true;
+                info.audioCodec(text(stream, "codec_name"))
+                        .audioChannels(stream.path("channels").asInt())
+                        .audioChannelLayout(text(stream, "channel_layout"))
+                        .audioSampleRate((int) stream.path("sample_rate").asDouble())
+                        .audioBitrate(asLong(stream, "bit_rate"));
             }
         }
+        if (videoIndex < 0) {
+            throw new IOException("No video stream found");
+        }
+        info.hasAudio(hasAudio);
 
-        int exitCode = process.waitFor();
-        if (exitCode != 0) {
-            throw new IOException("FFmpeg thumbnail generation failed with exit code " + exitCode);
+        List<Double> keyframes = new ArrayList<>();
+        for (JsonNode packet : root.path("packets")) {
+            if (packet.path("stream_index").asInt() != videoIndex) continue;
+            if (!packet.path("flags").asText().contains("K")) continue;
+            Double pts = asDouble(packet, "pts_time");
+            if (pts != null) keyframes.add(pts);
         }
+        if (keyframes.size() >= 2) {
+            keyframes.sort(Double::compare);
+            double maxGap = 0;
+            for (int i = 1; i < keyframes.size(); i++) {
+                maxGap = Math.max(maxGap, keyframes.get(i) - keyframes.get(i - 1));
+            }
+            info.keyframeInterval((keyframes.get(keyframes.size() - 1) - keyframes.get(0)) / (keyframes.size() - 1))
+                    .maxKeyframeInterval(maxGap);
+        }
+
+        return info.build();
     }
 
-    public static Integer getVideoDuration(String videoPath) throws IOException, InterruptedException {
-        videoPath = videoPath.replace("\\", "/");
-        
-        ProcessBuilder pb = new ProcessBuilder(
-                "ffprobe", "-v", "error",
-                "-show_entries", "format=duration",
-                "-of", "default=noprint_wrappers=1:nokey=1",
-                videoPath
-        );
-        pb.redirectErrorStream(true);
-        Process p = pb.start();
-        
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
-            String line = reader.readLine();
-            if (line != null && !line.trim().isEmpty()) {
-                try {
-                    double durationSeconds = Double.parseDouble(line.trim());
-                    return (int) Math.round(durationSeconds);
-                } catch (NumberFormatException e) {
-                    throw new IOException("Failed to parse duration: " + line, e);
-                }
+    private static void runChecked(List<String> command, String label, String tag,
+                                   Consumer<FFmpegProgress> progressListener) throws IOException, InterruptedException {
+        runChecked(command, label, tag, progressListener, null);
+    }
+
+    private static void runChecked(List<String> command, String label, String tag, Consumer<FFmpegProgress> progressListener,
+                                   ProcessSupervisor.StdinFeeder stdinFeeder) throws IOException, InterruptedException {
+        Consumer<String> lineConsumer = progressListener != null
+                ? new FFmpegProgressParser(progressListener)
+                : line -> System.out.println("[" + label + "] " + line);
+        ProcessResult result = ProcessSupervisor.run(command, label, tag, lineConsumer, false, stdinFeeder);
+        if (!result.isSuccess()) {
+            throw new IOException(result.describeFailure());
+        }
+    }
+
+    private static boolean isAttachedPicture(JsonNode stream) {
+        return stream.path("disposition").path("attached_pic").asInt() == 1;
+    }
+
+    private static Integer rotationOf(JsonNode stream) {
+        for (JsonNode sideData : stream.path("side_data_list")) {
+            if (sideData.has("rotation")) {
+                return sideData.path("rotation").asInt();
+            }
+        }
+        String rotate = stream.path("tags").path("rotate").asText(null);
+        if (rotate != null) {
+            try {
+                return Integer.parseInt(rotate.trim());
+            } catch (NumberFormatException ignored) {
+                // fall through
             }
         }
-        
-        int exitCode = p.waitFor();
-        if (exitCode != 0) {
-            throw new IOException("FFprobe failed to get video duration with exit code " + exitCode);
+        return 0;
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value != null && !value.isNull() ? value.asText() : null;
+    }
+
+    private static Double asDouble(JsonNode node, String field) {
+        String value = text(node, field);
+        if (value == null || value.equals("N/A")) return null;
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Long asLong(JsonNode node, String field) {
+        Double value = asDouble(node, field);
+        return value != null ? Math.round(value) : null;
+    }
+
+    private static Double parseRational(String value) {
+        if (value == null) return null;
+        String[] parts = value.split("/");
+        try {
+            if (parts.length == 2) {
+                double den = Double.parseDouble(parts[1]);
+                return den == 0 ? null : Double.parseDouble(parts[0]) / den;
+            }
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return null;
         }
-        
-        throw new IOException("No duration found in ffprobe output");
     }
 }
 //    public static void transcodeVideo(String input, String outputDir, String height, String name)
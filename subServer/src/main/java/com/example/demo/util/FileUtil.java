@@ -0,0 +1,26 @@
+package com.example.demo.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+
+public class FileUtil {
+
+    /**
+     * Write through a temp file next to the target and move it over, so a reader or a crash never sees a
+     * half-written file.
+     */
+    public static void writeAtomically(Path target, String content) throws IOException {
+        Path temp = target.resolveSibling(String.format(Locale.ROOT, ".%s.%d.tmp", target.getFileName(), System.nanoTime()));
+        Files.writeString(temp, content, StandardCharsets.UTF_8);
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
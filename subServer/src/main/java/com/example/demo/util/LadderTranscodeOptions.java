@@ -0,0 +1,45 @@
+package com.example.demo.util;
+
+import com.example.demo.model.LadderRung;
+import lombok.Builder;
+import lombok.Getter;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Inputs for {@link FFmpegUtil#transcodeLadder(LadderTranscodeOptions)}.
+ */
+@Getter
+@Builder
+public class LadderTranscodeOptions {
+    private String videoPath;
+    // renditions are written to {outputDir}/{height}/{fileName}_{height}p.m3u8
+    private String outputDir;
+    private List<Integer> heights;
+    // rate control per height, heights without an entry are encoded with plain CRF
+    @Builder.Default
+    private Map<Integer, LadderRung> rungs = Map.of();
+    @Builder.Default
+    private String fileName = "qmh";
+    @Builder.Default
+    private int threads = 0;
+    // x264 preset shared by every rendition
+    @Builder.Default
+    private String preset = "medium";
+    // shift output timestamps, used when the input is one part of a longer video
+    @Builder.Default
+    private double outputTsOffset = 0;
+    // inserted into segment names so parts of the same video do not collide, e.g. "p0003_"
+    @Builder.Default
+    private String segmentPrefix = "";
+    // when set, sprite sheets and the hover clip are written here from the same decoded frames
+    private String previewDir;
+    // seconds, places the hover clip and bounds the storyboard index
+    private Double duration;
+    // process tag for cancellation, usually the video id
+    private String tag;
+    // receives ffmpeg -progress reports, may be null
+    private Consumer<FFmpegProgress> progressListener;
+}
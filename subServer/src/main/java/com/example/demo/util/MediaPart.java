@@ -0,0 +1,12 @@
+package com.example.demo.util;
+
+/**
+ * One keyframe-aligned piece of a longer media file, with its position in the source timeline (seconds).
+ */
+public record MediaPart(
+        int index,
+        String path,
+        double start,
+        double end
+) {
+}
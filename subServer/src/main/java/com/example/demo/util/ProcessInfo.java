@@ -0,0 +1,16 @@
+package com.example.demo.util;
+
+import java.time.Instant;
+
+/**
+ * Snapshot of a process currently tracked by {@link ProcessSupervisor}.
+ */
+public record ProcessInfo(
+        String id,
+        String label,
+        String tag,
+        long pid,
+        Instant startedAt,
+        Instant lastActivity
+) {
+}
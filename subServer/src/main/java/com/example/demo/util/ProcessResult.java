@@ -0,0 +1,32 @@
+package com.example.demo.util;
+
+/**
+ * Outcome of a process run through {@link ProcessSupervisor}.
+ */
+public record ProcessResult(
+        String id,
+        String label,
+        int exitCode,
+        // full stdout when it was captured, null otherwise
+        String stdout,
+        // last lines written to stderr, for error messages
+        String stderrTail,
+        long elapsedMillis,
+        boolean timedOut,
+        boolean stalled,
+        boolean cancelled
+) {
+    public boolean isSuccess() {
+        return exitCode == 0 && !timedOut && !stalled && !cancelled;
+    }
+
+    public String describeFailure() {
+        String reason;
+        if (cancelled) reason = "cancelled";
+        else if (timedOut) reason = "timed out";
+        else if (stalled) reason = "stalled without progress";
+        else reason = "exit code " + exitCode;
+        return label + " failed (" + reason + ") after " + elapsedMillis + " ms"
+                + (stderrTail == null || stderrTail.isBlank() ? "" : ": " + stderrTail);
+    }
+}
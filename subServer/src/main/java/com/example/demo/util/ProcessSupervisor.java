@@ -0,0 +1,230 @@
+package com.example.demo.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs ffmpeg/ffprobe (and the scripts wrapping them) with a wall-clock timeout, a no-progress timeout and
+ * cancellation. Every running process is kept in a registry so stuck jobs can be listed and killed.
+ * Any output line, on stdout or stderr, counts as progress.
+ */
+public class ProcessSupervisor {
+    private static final int STDERR_TAIL_LINES = 20;
+
+    private static final Map<String, Supervised> LIVE = new ConcurrentHashMap<>();
+
+    private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "process-watchdog");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static volatile Duration defaultTimeout = Duration.ofHours(6);
+    private static volatile Duration defaultNoProgressTimeout = Duration.ofMinutes(5);
+
+    static {
+        WATCHDOG.scheduleWithFixedDelay(ProcessSupervisor::checkDeadlines, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public static void configure(Duration timeout, Duration noProgressTimeout) {
+        defaultTimeout = timeout;
+        defaultNoProgressTimeout = noProgressTimeout;
+    }
+
+    public static ProcessResult run(List<String> command, String label) throws IOException, InterruptedException {
+        return run(command, label, null, null, false);
+    }
+
+    /**
+     * @param tag          groups processes for cancellation, usually the video id
+     * @param lineConsumer receives every stdout line, may be null
+     * @param captureStdout keep the whole stdout in the result instead of handing it line by line
+     */
+    public static ProcessResult run(List<String> command, String label, String tag,
+                                    Consumer<String> lineConsumer, boolean captureStdout) throws IOException, InterruptedException {
+        return run(command, label, tag, lineConsumer, captureStdout, null);
+    }
+
+    /**
+     * @param stdinFeeder writes the process input on its own thread, stdin is closed when it returns;
+     *                    if it fails the process is killed. May be null.
+     */
+    public static ProcessResult run(List<String> command, String label, String tag, Consumer<String> lineConsumer,
+                                    boolean captureStdout, StdinFeeder stdinFeeder) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command).start();
+        Supervised supervised = new Supervised(UUID.randomUUID().toString(), label, tag, process,
+                defaultTimeout, defaultNoProgressTimeout);
+        LIVE.put(supervised.id, supervised);
+
+        Thread stdinWriter = null;
+        try {
+            Thread stderrReader = new Thread(() -> readStderr(supervised), "stderr-" + label);
+            stderrReader.setDaemon(true);
+            stderrReader.start();
+            if (stdinFeeder != null) {
+                stdinWriter = new Thread(() -> writeStdin(supervised, stdinFeeder), "stdin-" + label);
+                stdinWriter.setDaemon(true);
+                stdinWriter.start();
+            }
+
+            StringBuilder stdout = captureStdout ? new StringBuilder() : null;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    supervised.touch();
+                    if (stdout != null) stdout.append(line).append('\n');
+                    if (lineConsumer != null) lineConsumer.accept(line);
+                }
+            }
+
+            int exitCode = process.waitFor();
+            stderrReader.join(TimeUnit.SECONDS.toMillis(5));
+
+            return new ProcessResult(supervised.id, label, exitCode,
+                    stdout != null ? stdout.toString() : null,
+                    supervised.stderrTail(),
+                    Duration.between(supervised.startedAt, Instant.now()).toMillis(),
+                    supervised.timedOut, supervised.stalled, supervised.cancelled);
+        } catch (InterruptedException e) {
+            kill(supervised);
+            throw e;
+        } finally {
+            LIVE.remove(supervised.id);
+            // a feeder still waiting for input has nobody left to write to
+            if (stdinWriter != null) stdinWriter.interrupt();
+        }
+    }
+
+    public static List<ProcessInfo> list() {
+        return LIVE.values().stream()
+                .map(s -> new ProcessInfo(s.id, s.label, s.tag, s.process.pid(), s.startedAt, Instant.ofEpochMilli(s.lastActivity)))
+                .toList();
+    }
+
+    public static boolean cancel(String id) {
+        Supervised supervised = LIVE.get(id);
+        if (supervised == null) return false;
+        supervised.cancelled = true;
+        kill(supervised);
+        return true;
+    }
+
+    /**
+     * Cancel every live process carrying the tag. Returns how many were cancelled.
+     */
+    public static int cancelByTag(String tag) {
+        int count = 0;
+        for (Supervised supervised : LIVE.values()) {
+            if (tag.equals(supervised.tag) && cancel(supervised.id)) count++;
+        }
+        return count;
+    }
+
+    private static void readStderr(Supervised supervised) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(supervised.process.getErrorStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                supervised.touch();
+                supervised.appendStderr(line);
+                System.out.println("[" + supervised.label + "] " + line);
+            }
+        } catch (IOException ignored) {
+            // stream closes when the process is killed
+        }
+    }
+
+    private static void writeStdin(Supervised supervised, StdinFeeder feeder) {
+        try (OutputStream stdin = supervised.process.getOutputStream()) {
+            feeder.feed(stdin);
+        } catch (InterruptedException e) {
+            kill(supervised);
+        } catch (IOException e) {
+            if (supervised.process.isAlive()) {
+                supervised.appendStderr("stdin: " + e.getMessage());
+                System.err.println("Killing " + supervised.label + ": feeding its input failed: " + e.getMessage());
+                kill(supervised);
+            }
+        }
+    }
+
+    private static void checkDeadlines() {
+        long now = System.currentTimeMillis();
+        for (Supervised supervised : LIVE.values()) {
+            if (now - supervised.startedAt.toEpochMilli() > supervised.timeout.toMillis()) {
+                supervised.timedOut = true;
+                System.err.println("Killing " + supervised.label + ": exceeded " + supervised.timeout);
+                kill(supervised);
+            } else if (now - supervised.lastActivity > supervised.noProgressTimeout.toMillis()) {
+                supervised.stalled = true;
+                System.err.println("Killing " + supervised.label + ": no output for " + supervised.noProgressTimeout);
+                kill(supervised);
+            }
+        }
+    }
+
+    private static void kill(Supervised supervised) {
+        // scripts run ffmpeg as a child, so take the whole tree down
+        supervised.process.descendants().forEach(ProcessHandle::destroyForcibly);
+        supervised.process.destroyForcibly();
+    }
+
+    /**
+     * Produces the input of a process, e.g. a file that is still being uploaded.
+     */
+    @FunctionalInterface
+    public interface StdinFeeder {
+        void feed(OutputStream stdin) throws IOException, InterruptedException;
+    }
+
+    private static final class Supervised {
+        private final String id;
+        private final String label;
+        private final String tag;
+        private final Process process;
+        private final Instant startedAt = Instant.now();
+        private final Duration timeout;
+        private final Duration noProgressTimeout;
+        private final Deque<String> stderrTail = new ArrayDeque<>();
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile boolean timedOut;
+        private volatile boolean stalled;
+        private volatile boolean cancelled;
+
+        private Supervised(String id, String label, String tag, Process process, Duration timeout, Duration noProgressTimeout) {
+            this.id = id;
+            this.label = label;
+            this.tag = tag;
+            this.process = process;
+            this.timeout = timeout;
+            this.noProgressTimeout = noProgressTimeout;
+        }
+
+        private void touch() {
+            lastActivity = System.currentTimeMillis();
+        }
+
+        private synchronized void appendStderr(String line) {
+            if (stderrTail.size() == STDERR_TAIL_LINES) stderrTail.removeFirst();
+            stderrTail.addLast(line);
+        }
+
+        private synchronized String stderrTail() {
+            return String.join("\n", stderrTail);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.demo.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Seek-preview sprite sheets, their WebVTT index and the hover-preview clip.
+ * The filters here hang off a split of already decoded frames, so the previews come out of a transcode pass
+ * instead of another read of the raw file.
+ */
+public class StoryboardUtil {
+    public static final String PREVIEW_DIR = "previews";
+    public static final String VTT_NAME = "storyboard.vtt";
+    public static final String HOVER_NAME = "hover.mp4";
+
+    // one tile every INTERVAL seconds, COLUMNS x ROWS tiles per sheet
+    private static final int INTERVAL = 5;
+    private static final int TILE_WIDTH = 160;
+    private static final int TILE_HEIGHT = 90;
+    private static final int COLUMNS = 10;
+    private static final int ROWS = 10;
+    private static final double HOVER_SECONDS = 6;
+
+    /**
+     * Filter chains taking the decoded frames from {@code spriteIn}/{@code hoverIn} to the [spr] and [hov] outputs.
+     */
+    public static String filters(String spriteIn, String hoverIn, Double duration) {
+        // tiles are letterboxed to a fixed size so the VTT coordinates do not depend on the aspect ratio
+        String sprite = String.format(Locale.US,
+                "[%s]fps=1/%d,scale=%d:%d:force_original_aspect_ratio=decrease,pad=%d:%d:(ow-iw)/2:(oh-ih)/2,tile=%dx%d[spr]",
+                spriteIn, INTERVAL, TILE_WIDTH, TILE_HEIGHT, TILE_WIDTH, TILE_HEIGHT, COLUMNS, ROWS);
+        String hover = String.format(Locale.US,
+                "[%s]trim=start=%.3f:duration=%.3f,setpts=PTS-STARTPTS,fps=15,scale=-2:180[hov]",
+                hoverIn, hoverStart(duration), HOVER_SECONDS);
+        return sprite + ";" + hover;
+    }
+
+    /**
+     * Output arguments for the [spr] and [hov] streams, appended after every other output of the command.
+     * {@code threads} is per encoder, 0 lets ffmpeg decide.
+     */
+    public static List<String> outputs(String previewDir, String threads) {
+        return List.of(
+                "-map", "[spr]", "-c:v", "mjpeg", "-q:v", "5", "-threads", threads, "-start_number", "0", "-f", "image2",
+                previewDir + "/sprite_%03d.jpg",
+                "-map", "[hov]", "-an", "-c:v", "libx264", "-preset", "veryfast", "-crf", "32", "-threads", threads,
+                "-maxrate", "300k", "-bufsize", "600k", "-pix_fmt", "yuv420p", "-movflags", "+faststart",
+                previewDir + "/" + HOVER_NAME);
+    }
+
+    /**
+     * Index the sprite sheets: one cue per tile pointing at its rectangle with a media fragment.
+     */
+    public static void writeVtt(Path previewDir, Double duration) throws IOException {
+        double total = duration != null && duration > 0 ? duration : 0;
+        StringBuilder vtt = new StringBuilder("WEBVTT\n\n");
+        int perSheet = COLUMNS * ROWS;
+        for (int tile = 0; tile * INTERVAL < total; tile++) {
+            String sheet = String.format(Locale.ROOT, "sprite_%03d.jpg", tile / perSheet);
+            if (!Files.exists(previewDir.resolve(sheet))) break;
+            int position = tile % perSheet;
+            vtt.append(timestamp(tile * INTERVAL)).append(" --> ")
+                    .append(timestamp(Math.min(total, (tile + 1) * INTERVAL))).append('\n')
+                    .append(sheet).append("#xywh=")
+                    .append(position % COLUMNS * TILE_WIDTH).append(',')
+                    .append(position / COLUMNS * TILE_HEIGHT).append(',')
+                    .append(TILE_WIDTH).append(',').append(TILE_HEIGHT).append("\n\n");
+        }
+        Files.writeString(previewDir.resolve(VTT_NAME), vtt.toString(), StandardCharsets.UTF_8);
+    }
+
+    private static double hoverStart(Double duration) {
+        if (duration == null || duration <= HOVER_SECONDS) return 0;
+        // skip intros, but stay inside short videos
+        return Math.min(duration * 0.1, duration - HOVER_SECONDS);
+    }
+
+    private static String timestamp(double seconds) {
+        long millis = Math.round(seconds * 1000);
+        return String.format(Locale.ROOT, "%02d:%02d:%02d.%03d",
+                millis / 3_600_000, millis / 60_000 % 60, millis / 1000 % 60, millis % 1000);
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.demo.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class EncoderPresetServiceTest {
+
+    @Mock
+    private TranscodeSchedulerService transcodeSchedulerService;
+
+    @Mock
+    private TranscodeWorkerPool workerPool;
+
+    @Mock
+    private TaskPublisherService taskPublisherService;
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @InjectMocks
+    private EncoderPresetService encoderPresetService;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(encoderPresetService, "adaptive", true);
+        ReflectionTestUtils.setField(encoderPresetService, "defaultPreset", "medium");
+        ReflectionTestUtils.setField(encoderPresetService, "fastestPreset", "veryfast");
+        ReflectionTestUtils.setField(encoderPresetService, "slowestPreset", "slow");
+        ReflectionTestUtils.setField(encoderPresetService, "idleDrainMinutes", 5.0);
+        ReflectionTestUtils.setField(encoderPresetService, "busyDrainMinutes", 60.0);
+        ReflectionTestUtils.setField(encoderPresetService, "queueName", "transcode");
+        encoderPresetService.validate();
+    }
+
+    @Test
+    void testChoose_DefaultWhenNotAdaptive() {
+        // Arrange
+        ReflectionTestUtils.setField(encoderPresetService, "adaptive", false);
+
+        // Act & Assert
+        assertEquals("medium", encoderPresetService.choose());
+        verifyNoInteractions(transcodeSchedulerService, taskPublisherService);
+    }
+
+    @Test
+    void testChoose_DefaultBeforeAnyJobWasMeasured() {
+        // Arrange
+        when(workerPool.getMaxWorkers()).thenReturn(2);
+        when(transcodeSchedulerService.isEnabled()).thenReturn(true);
+
+        // Act & Assert
+        assertEquals("medium", encoderPresetService.choose());
+    }
+
+    @Test
+    void testChoose_SlowestWhenTheBacklogDrainsQuickly() {
+        // Arrange: 10 megapixel-seconds per second and worker, 2 workers, 50s of work waiting
+        encoderPresetService.recordJob(100.0, 10_000);
+        when(workerPool.getMaxWorkers()).thenReturn(2);
+        when(transcodeSchedulerService.isEnabled()).thenReturn(true);
+        when(transcodeSchedulerService.getPendingCost()).thenReturn(1_000.0);
+
+        // Act & Assert
+        assertEquals("slow", encoderPresetService.choose());
+    }
+
+    @Test
+    void testChoose_FastestWhenTheBacklogTakesOverAnHour() {
+        // Arrange: 5000s of work waiting
+        encoderPresetService.recordJob(100.0, 10_000);
+        when(workerPool.getMaxWorkers()).thenReturn(2);
+        when(transcodeSchedulerService.isEnabled()).thenReturn(true);
+        when(transcodeSchedulerService.getPendingCost()).thenReturn(100_000.0);
+
+        // Act & Assert
+        assertEquals("veryfast", encoderPresetService.choose());
+    }
+
+    @Test
+    void testChoose_StepsOnTheLogOfTheDrainTime() {
+        // Arrange: ~1039s is halfway between 5 and 60 minutes on a log scale
+        encoderPresetService.recordJob(100.0, 10_000);
+        when(workerPool.getMaxWorkers()).thenReturn(2);
+        when(transcodeSchedulerService.isEnabled()).thenReturn(true);
+        when(transcodeSchedulerService.getPendingCost()).thenReturn(20_785.0);
+
+        // Act & Assert: halfway between slow and veryfast
+        assertEquals("fast", encoderPresetService.choose());
+    }
+
+    @Test
+    void testChoose_FallsBackToTheQueueDepthWithoutTheScheduler() {
+        // Arrange: 120 tasks of 60s on 2 workers
+        encoderPresetService.recordJob(null, 60_000);
+        when(workerPool.getMaxWorkers()).thenReturn(2);
+        when(transcodeSchedulerService.isEnabled()).thenReturn(false);
+        when(taskPublisherService.getQueueDepth()).thenReturn(120L);
+
+        // Act & Assert
+        assertEquals("veryfast", encoderPresetService.choose());
+    }
+
+    @Test
+    void testChoose_DefaultWhenTheQueueCannotBeRead() {
+        // Arrange
+        encoderPresetService.recordJob(null, 60_000);
+        when(workerPool.getMaxWorkers()).thenReturn(2);
+        when(transcodeSchedulerService.isEnabled()).thenReturn(false);
+        when(taskPublisherService.getQueueDepth()).thenThrow(new IllegalStateException("broker down"));
+
+        // Act & Assert
+        assertEquals("medium", encoderPresetService.choose());
+    }
+
+    @Test
+    void testValidate_RejectsBoundsInTheWrongOrder() {
+        // Arrange
+        ReflectionTestUtils.setField(encoderPresetService, "fastestPreset", "slow");
+        ReflectionTestUtils.setField(encoderPresetService, "slowestPreset", "veryfast");
+
+        // Act & Assert
+        assertThrows(IllegalStateException.class, () -> encoderPresetService.validate());
+    }
+}
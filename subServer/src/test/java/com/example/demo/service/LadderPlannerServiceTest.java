@@ -0,0 +1,118 @@
+package com.example.demo.service;
+
+import com.example.demo.model.LadderRung;
+import com.example.demo.model.MediaInfo;
+import com.example.demo.util.FFmpegUtil;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mockStatic;
+
+public class LadderPlannerServiceTest {
+
+    private LadderPlannerService ladderPlannerService;
+    private MockedStatic<FFmpegUtil> ffmpeg;
+    private MediaInfo mediaInfo;
+
+    @BeforeEach
+    void setUp() {
+        ladderPlannerService = new LadderPlannerService();
+        ReflectionTestUtils.setField(ladderPlannerService, "enabled", true);
+        ReflectionTestUtils.setField(ladderPlannerService, "probeHeight", 360);
+        ReflectionTestUtils.setField(ladderPlannerService, "probeSeconds", 20.0);
+        ReflectionTestUtils.setField(ladderPlannerService, "pruneRatio", 0.7);
+        ReflectionTestUtils.setField(ladderPlannerService, "maxrateFactor", 1.5);
+        ReflectionTestUtils.setField(ladderPlannerService, "bufsizeFactor", 2.0);
+
+        ffmpeg = mockStatic(FFmpegUtil.class);
+        mediaInfo = MediaInfo.builder().duration(600.0).build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        ffmpeg.close();
+    }
+
+    @Test
+    void testPlan_ScalesTheProbeToEachRung() {
+        // Arrange: 500 kbps at 360p, no source bitrate known
+        ffmpeg.when(() -> FFmpegUtil.measureCrfBitrate(anyString(), eq(360), anyInt(), anyDouble(), anyDouble(), any()))
+                .thenReturn(500L);
+
+        // Act
+        List<LadderRung> ladder = ladderPlannerService.plan("in.mp4", mediaInfo, List.of(360, 1080, 720), "video1");
+
+        // Assert: highest first, bits grow with pixels^0.75
+        assertEquals(List.of(1080, 720, 360), ladder.stream().map(LadderRung::getHeight).toList());
+        assertEquals(2598, ladder.get(0).getTargetBitrate());
+        assertEquals(3897, ladder.get(0).getMaxrate());
+        assertEquals(5196, ladder.get(0).getBufsize());
+        assertEquals(1414, ladder.get(1).getTargetBitrate());
+        assertEquals(500, ladder.get(2).getTargetBitrate());
+    }
+
+    @Test
+    void testPlan_SamplesTheVideoMiddle() {
+        // Arrange
+        ffmpeg.when(() -> FFmpegUtil.measureCrfBitrate(anyString(), anyInt(), anyInt(), anyDouble(), anyDouble(), any()))
+                .thenReturn(500L);
+
+        // Act
+        ladderPlannerService.plan("in.mp4", mediaInfo, List.of(720), "video1");
+
+        // Assert
+        ffmpeg.verify(() -> FFmpegUtil.measureCrfBitrate("in.mp4", 360, 23, 290.0, 20.0, "video1"));
+    }
+
+    @Test
+    void testPlan_ClampsToTheRungBounds() {
+        // Arrange: very complex content
+        ffmpeg.when(() -> FFmpegUtil.measureCrfBitrate(anyString(), anyInt(), anyInt(), anyDouble(), anyDouble(), any()))
+                .thenReturn(5000L);
+
+        // Act
+        List<LadderRung> ladder = ladderPlannerService.plan("in.mp4", mediaInfo, List.of(1080, 720), "video1");
+
+        // Assert
+        assertEquals(6000, ladder.get(0).getTargetBitrate());
+        assertEquals(3500, ladder.get(1).getTargetBitrate());
+    }
+
+    @Test
+    void testPlan_CapsAtTheSourceBitrateAndDropsRungsTooCloseToTheOneAbove() {
+        // Arrange: the probe fails, so every rung starts at its ceiling
+        ffmpeg.when(() -> FFmpegUtil.measureCrfBitrate(anyString(), anyInt(), anyInt(), anyDouble(), anyDouble(), any()))
+                .thenThrow(new IOException("ffmpeg not found"));
+        mediaInfo.setVideoBitrate(2_000_000L);
+
+        // Act
+        List<LadderRung> ladder = ladderPlannerService.plan("in.mp4", mediaInfo, List.of(1080, 720, 480, 360), "video1");
+
+        // Assert: 720p and 480p would cost at least 70% of the 2000 kbps 1080p rung
+        assertEquals(List.of(1080, 360), ladder.stream().map(LadderRung::getHeight).toList());
+        assertEquals(2000, ladder.get(0).getTargetBitrate());
+        assertEquals(1000, ladder.get(1).getTargetBitrate());
+    }
+
+    @Test
+    void testPlan_KeepsEveryCandidateWhenDisabled() {
+        // Arrange
+        ReflectionTestUtils.setField(ladderPlannerService, "enabled", false);
+
+        // Act
+        List<LadderRung> ladder = ladderPlannerService.plan("in.mp4", mediaInfo, List.of(480, 1080), "video1");
+
+        // Assert
+        assertEquals(List.of(1080, 480), ladder.stream().map(LadderRung::getHeight).toList());
+        assertEquals(0, ladder.get(0).getMaxrate());
+        ffmpeg.verifyNoInteractions();
+    }
+}
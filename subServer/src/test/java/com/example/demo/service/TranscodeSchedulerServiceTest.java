@@ -0,0 +1,163 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ScheduledTask;
+import com.example.demo.model.Video;
+import com.example.demo.repository.VideoRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class TranscodeSchedulerServiceTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @Mock
+    private VideoRepository videoRepository;
+
+    @Mock
+    private RabbitTemplate rabbitTemplate;
+
+    @Mock
+    private TranscodeWorkerPool workerPool;
+
+    @InjectMocks
+    private TranscodeSchedulerService transcodeSchedulerService;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(transcodeSchedulerService, "enabled", true);
+        ReflectionTestUtils.setField(transcodeSchedulerService, "quantum", 500.0);
+        // one task in the broker at a time, so the dispatch order is observable
+        ReflectionTestUtils.setField(transcodeSchedulerService, "window", 1);
+        ReflectionTestUtils.setField(transcodeSchedulerService, "exchangeName", "exchange");
+        ReflectionTestUtils.setField(transcodeSchedulerService, "routingkey", "key");
+        ReflectionTestUtils.setField(transcodeSchedulerService, "serverLocation", "server1");
+
+        // video ids are "<user>-<n>"
+        when(videoRepository.findById(anyString())).thenAnswer(invocation -> {
+            String videoId = invocation.getArgument(0);
+            Video video = new Video();
+            video.setId(videoId);
+            video.setUsername(videoId.substring(0, videoId.indexOf('-')));
+            return Optional.of(video);
+        });
+    }
+
+    @Test
+    void testDispatch_ShortTasksOfAnotherUserGoAheadOfALongBacklog() {
+        // Arrange: carol's task holds the only slot while alice queues long videos and bob short ones
+        submit("carol-1", 5, 100);
+        submit("alice-1", 5, 1000);
+        submit("alice-2", 5, 1000);
+        submit("alice-3", 5, 1000);
+        submit("bob-1", 5, 100);
+        submit("bob-2", 5, 100);
+        submit("bob-3", 5, 100);
+
+        // Act
+        List<String> order = drain();
+
+        // Assert: a 720p task of 1000s costs ~922, one of 100s ~92 against a quantum of 500
+        assertEquals(List.of("carol-1", "bob-1", "bob-2", "bob-3", "alice-1", "alice-2", "alice-3"), order);
+    }
+
+    @Test
+    void testDispatch_AlternatesBetweenUsersWithEqualTasks() {
+        // Arrange
+        submit("carol-1", 5, 100);
+        submit("alice-1", 5, 400);
+        submit("alice-2", 5, 400);
+        submit("bob-1", 5, 400);
+        submit("bob-2", 5, 400);
+
+        // Act
+        List<String> order = drain();
+
+        // Assert: each ~369 task uses up most of its user's quantum
+        assertEquals(List.of("carol-1", "alice-1", "bob-1", "alice-2", "bob-2"), order);
+    }
+
+    @Test
+    void testDispatch_HigherPriorityThenCheaperFirstWithinAUser() {
+        // Arrange
+        submit("carol-1", 5, 100);
+        submit("alice-1", 5, 300);
+        submit("alice-2", 5, 50);
+        submit("alice-3", 9, 600);
+
+        // Act
+        List<String> order = drain();
+
+        // Assert
+        assertEquals(List.of("carol-1", "alice-3", "alice-2", "alice-1"), order);
+    }
+
+    @Test
+    void testFinished_ReleasesTheSlotAndTheStoredTask() {
+        // Arrange
+        submit("alice-1", 5, 100);
+        submit("alice-2", 5, 100);
+        assertEquals(1, transcodeSchedulerService.getPendingCount());
+
+        // Act
+        transcodeSchedulerService.finished(taskId(sent().get(0)));
+
+        // Assert
+        assertEquals(0, transcodeSchedulerService.getPendingCount());
+        assertEquals(2, sent().size());
+        verify(mongoTemplate, atLeastOnce()).remove(any(Query.class), eq(ScheduledTask.class));
+    }
+
+    private void submit(String videoId, int priority, double seconds) {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("videoId", videoId);
+        transcodeSchedulerService.submit(videoId, payload, priority, List.of(720), seconds);
+    }
+
+    /**
+     * Report every dispatched task done until nothing is left, returning the videos in dispatch order.
+     */
+    private List<String> drain() {
+        int done = 0;
+        while (done < sent().size()) {
+            transcodeSchedulerService.finished(taskId(sent().get(done++)));
+        }
+        return sent().stream().map(payload -> (String) payload.get("videoId")).toList();
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> sent() {
+        ArgumentCaptor<Object> payloads = ArgumentCaptor.forClass(Object.class);
+        verify(rabbitTemplate, atLeastOnce()).convertAndSend(eq("exchange"), eq("key"), payloads.capture(),
+                any(MessagePostProcessor.class));
+        return payloads.getAllValues().stream().map(payload -> (Map<String, Object>) payload).toList();
+    }
+
+    private static String taskId(Map<String, Object> payload) {
+        return (String) payload.get(TranscodeSchedulerService.TASK_ID);
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.demo.service;
+
+import com.example.demo.model.UploadSession;
+import com.example.demo.payload.response.ChunkRangeResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(MockitoExtension.class)
+public class UploadChunkTrackerTest {
+
+    @Mock
+    private MongoTemplate mongoTemplate;
+
+    @InjectMocks
+    private UploadChunkTracker uploadChunkTracker;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(uploadChunkTracker, "idleMinutes", 30L);
+    }
+
+    @Test
+    void testMissingRanges_WholeUploadWhenNothingArrived() {
+        // Act
+        List<ChunkRangeResponse> missing = uploadChunkTracker.missingRanges("session1", 5);
+
+        // Assert
+        assertEquals(List.of(new ChunkRangeResponse(0, 4)), missing);
+    }
+
+    @Test
+    void testMissingRanges_ReportsEveryGap() {
+        // Arrange: chunks arrive out of order
+        uploadChunkTracker.markReceived("session1", 3, 6);
+        uploadChunkTracker.markReceived("session1", 0, 6);
+        uploadChunkTracker.markReceived("session1", 2, 6);
+
+        // Act
+        List<ChunkRangeResponse> missing = uploadChunkTracker.missingRanges("session1", 6);
+
+        // Assert
+        assertEquals(List.of(new ChunkRangeResponse(1, 1), new ChunkRangeResponse(4, 5)), missing);
+    }
+
+    @Test
+    void testMissingRanges_EmptyWhenComplete() {
+        // Arrange
+        assertFalse(uploadChunkTracker.markReceived("session1", 1, 2));
+        assertTrue(uploadChunkTracker.markReceived("session1", 0, 2));
+
+        // Act & Assert
+        assertTrue(uploadChunkTracker.missingRanges("session1", 2).isEmpty());
+    }
+
+    @Test
+    void testMissingRanges_StopsAtTotalChunks() {
+        // Arrange: the stored bitmap has a bit past the end of the upload
+        BitSet bits = new BitSet();
+        bits.set(0);
+        bits.set(9);
+        when(mongoTemplate.findById("session1", UploadSession.class)).thenReturn(session(bits));
+
+        // Act
+        List<ChunkRangeResponse> missing = uploadChunkTracker.missingRanges("session1", 5);
+
+        // Assert
+        assertEquals(List.of(new ChunkRangeResponse(1, 4)), missing);
+    }
+
+    @Test
+    void testMissingRanges_DoesNotKeepPolledSessionsInMemory() {
+        // Act
+        uploadChunkTracker.missingRanges("session1", 5);
+        uploadChunkTracker.missingRanges("session1", 5);
+
+        // Assert: read from the session both times
+        verify(mongoTemplate, times(2)).findById("session1", UploadSession.class);
+    }
+
+    @Test
+    void testEvictIdle_ReloadsEvictedSessionsFromMongo() {
+        // Arrange
+        uploadChunkTracker.markReceived("session1", 0, 3);
+        ReflectionTestUtils.setField(uploadChunkTracker, "idleMinutes", -1L);
+        BitSet stored = new BitSet();
+        stored.set(0);
+        stored.set(1);
+        when(mongoTemplate.findById("session1", UploadSession.class)).thenReturn(session(stored));
+
+        // Act
+        uploadChunkTracker.evictIdle();
+
+        // Assert
+        assertEquals(List.of(new ChunkRangeResponse(2, 2)), uploadChunkTracker.missingRanges("session1", 3));
+    }
+
+    private static UploadSession session(BitSet bits) {
+        UploadSession session = new UploadSession();
+        session.setId("session1");
+        session.setReceivedChunks(bits.toByteArray());
+        return session;
+    }
+}
@@ -0,0 +1,84 @@
+package com.example.demo.service;
+
+import com.example.demo.model.LadderRung;
+import com.example.demo.model.MediaInfo;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class VideoServiceRemuxTest {
+
+    private VideoService videoService;
+
+    @BeforeEach
+    void setUp() {
+        videoService = new VideoService();
+        ReflectionTestUtils.setField(videoService, "remuxMaxGopSeconds", 5.0);
+        ReflectionTestUtils.setField(videoService, "remuxMaxBitrateKbps", 8000L);
+    }
+
+    private static MediaInfo.MediaInfoBuilder source() {
+        return MediaInfo.builder()
+                .videoCodec("h264")
+                .pixelFormat("yuv420p")
+                .width(1920)
+                .height(1080)
+                .frameRate(30.0)
+                .videoBitrate(5_000_000L)
+                .keyframeInterval(2.0)
+                .maxKeyframeInterval(2.0);
+    }
+
+    private static LadderRung rung(int maxrate) {
+        return LadderRung.builder().height(1080).targetBitrate(6000).maxrate(maxrate).bufsize(maxrate * 2).build();
+    }
+
+    @Test
+    void testCanRemux_SourceWithinThePlannedRate() {
+        assertTrue(videoService.canRemux(source().build(), rung(9000)));
+    }
+
+    @Test
+    void testCanRemux_SourceAboveThePlannedMaxrate() {
+        // Arrange: a 20 Mbps phone upload against a 9000 kbps rung
+        MediaInfo mediaInfo = source().videoBitrate(20_000_000L).build();
+
+        // Act & Assert
+        assertFalse(videoService.canRemux(mediaInfo, rung(9000)));
+    }
+
+    @Test
+    void testCanRemux_DefaultCapWhenTheRungIsUncapped() {
+        assertFalse(videoService.canRemux(source().videoBitrate(12_000_000L).build(), rung(0)));
+        assertTrue(videoService.canRemux(source().build(), rung(0)));
+    }
+
+    @Test
+    void testCanRemux_UnknownBitrateIsEncoded() {
+        assertFalse(videoService.canRemux(source().videoBitrate(null).build(), rung(9000)));
+    }
+
+    @Test
+    void testCanRemux_KeyframeIntervalMustDivideTheSegment() {
+        // 3 s keyframes cut segments at 12 s, 21 s, ... instead of the 10 s of the encoded renditions
+        assertFalse(videoService.canRemux(source().keyframeInterval(3.0).maxKeyframeInterval(3.0).build(), rung(9000)));
+        assertTrue(videoService.canRemux(source().keyframeInterval(2.5).maxKeyframeInterval(2.5).build(), rung(9000)));
+    }
+
+    @Test
+    void testCanRemux_IrregularKeyframesAreEncoded() {
+        // Arrange: keyframes every 2 s on average but one gap of 4 s
+        MediaInfo mediaInfo = source().keyframeInterval(2.0).maxKeyframeInterval(4.0).build();
+
+        // Act & Assert
+        assertFalse(videoService.canRemux(mediaInfo, rung(9000)));
+    }
+
+    @Test
+    void testCanRemux_OtherHeightIsEncoded() {
+        assertFalse(videoService.canRemux(source().build(),
+                LadderRung.builder().height(720).maxrate(9000).build()));
+    }
+}
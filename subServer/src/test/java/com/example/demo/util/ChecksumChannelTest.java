@@ -0,0 +1,68 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChecksumChannelTest {
+
+    private static final byte[] DATA = "hello world".getBytes(StandardCharsets.UTF_8);
+    private static final String SHA = "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9";
+
+    @Test
+    void testRead_ChecksumsEverythingRead() throws IOException {
+        // Arrange
+        ChecksumChannel channel = new ChecksumChannel(Channels.newChannel(new ByteArrayInputStream(DATA)), true);
+
+        // Act: small reads into a buffer that already holds other bytes
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.put((byte) 'x');
+        while (true) {
+            ByteBuffer window = buffer.slice().limit(Math.min(4, buffer.remaining()));
+            int read = channel.read(window);
+            if (read < 0) break;
+            buffer.position(buffer.position() + read);
+        }
+
+        // Assert
+        assertEquals(DATA.length, channel.getBytesRead());
+        assertEquals(0xc99465aaL, channel.getChecksum());
+        assertEquals(SHA, channel.getSha256());
+    }
+
+    @Test
+    void testRead_Sha256OnlyWhenRequested() throws IOException {
+        // Arrange
+        ChecksumChannel channel = new ChecksumChannel(Channels.newChannel(new ByteArrayInputStream(DATA)));
+
+        // Act
+        channel.read(ByteBuffer.allocate(64));
+
+        // Assert
+        assertNull(channel.getSha256());
+        assertEquals(0xc99465aaL, channel.getChecksum());
+    }
+
+    @Test
+    void testRead_FeedsTheCallersDigest() throws Exception {
+        // Arrange: the digest already covers the bytes before this chunk
+        MessageDigest content = MessageDigest.getInstance("SHA-256");
+        content.update("hello ".getBytes(StandardCharsets.UTF_8));
+        byte[] chunk = "world".getBytes(StandardCharsets.UTF_8);
+        ChecksumChannel channel = new ChecksumChannel(Channels.newChannel(new ByteArrayInputStream(chunk)), false, content);
+
+        // Act
+        channel.read(ByteBuffer.allocate(64));
+
+        // Assert
+        assertEquals(SHA, HexFormat.of().formatHex(content.digest()));
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChunkChecksumTest {
+
+    // CRC32C and SHA-256 of "hello world"
+    private static final long CRC = 0xc99465aaL;
+    private static final String SHA = "b94d27b9934d3e08a52e52d7da7dabfac484efe37a5380ee9088f7ace2efcde9";
+
+    @Test
+    void testOf_NullWithoutChecksums() {
+        assertNull(ChunkChecksum.of(null, " "));
+    }
+
+    @Test
+    void testOf_NormalizesHex() {
+        // Act
+        ChunkChecksum checksum = ChunkChecksum.of(" C99465AA ", null);
+
+        // Assert
+        assertEquals("c99465aa", checksum.crc32c());
+        assertFalse(checksum.wantsSha256());
+    }
+
+    @Test
+    void testOf_RejectsNonHex() {
+        assertThrows(IllegalArgumentException.class, () -> ChunkChecksum.of("xyz", null));
+    }
+
+    @Test
+    void testMismatch_NullWhenBothMatch() {
+        // Arrange
+        ChunkChecksum checksum = ChunkChecksum.of("c99465aa", SHA);
+
+        // Act & Assert
+        assertNull(checksum.mismatch(CRC, SHA));
+    }
+
+    @Test
+    void testMismatch_ReportsWrongCrc() {
+        // Arrange
+        ChunkChecksum checksum = ChunkChecksum.of("c99465aa", SHA);
+
+        // Act
+        String mismatch = checksum.mismatch(0x1234L, SHA);
+
+        // Assert
+        assertEquals("CRC32C is 00001234, expected c99465aa", mismatch);
+    }
+
+    @Test
+    void testMismatch_ReportsWrongSha() {
+        // Arrange
+        ChunkChecksum checksum = ChunkChecksum.of(null, SHA);
+
+        // Act
+        String mismatch = checksum.mismatch(CRC, "00");
+
+        // Assert
+        assertEquals("SHA-256 is 00, expected " + SHA, mismatch);
+    }
+
+    @Test
+    void testMismatch_OnlyChecksWhatWasDeclared() {
+        assertNull(ChunkChecksum.of("c99465aa", null).mismatch(CRC, null));
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FFmpegProgressParserTest {
+
+    private List<FFmpegProgress> reports;
+    private FFmpegProgressParser parser;
+
+    @BeforeEach
+    void setUp() {
+        reports = new ArrayList<>();
+        parser = new FFmpegProgressParser(reports::add);
+    }
+
+    @Test
+    void testAccept_EmitsOneReportPerBlock() {
+        // Act
+        feed("frame=120", "out_time_us=5000000", "speed=2.5x", "progress=continue",
+                "frame=240", "out_time_us=10000000", "speed=3x", "progress=end");
+
+        // Assert
+        assertEquals(2, reports.size());
+        assertEquals(5.0, reports.get(0).outTimeSeconds(), 1e-9);
+        assertEquals(2.5, reports.get(0).speed(), 1e-9);
+        assertFalse(reports.get(0).done());
+        assertEquals(10.0, reports.get(1).outTimeSeconds(), 1e-9);
+        assertEquals(3.0, reports.get(1).speed(), 1e-9);
+        assertTrue(reports.get(1).done());
+    }
+
+    @Test
+    void testAccept_ReadsOutTimeMsAsMicroseconds() {
+        // Act
+        feed("out_time_ms=1500000", "progress=continue");
+
+        // Assert
+        assertEquals(1.5, reports.get(0).outTimeSeconds(), 1e-9);
+    }
+
+    @Test
+    void testAccept_KeepsLastValuesWhenNotAvailable() {
+        // Act
+        feed("out_time_us=2000000", "speed=1.5x", "progress=continue",
+                "out_time_us=N/A", "speed=N/A", "progress=continue");
+
+        // Assert
+        assertEquals(2, reports.size());
+        assertEquals(2.0, reports.get(1).outTimeSeconds(), 1e-9);
+        assertEquals(1.5, reports.get(1).speed(), 1e-9);
+    }
+
+    @Test
+    void testAccept_IgnoresLinesThatAreNotKeyValuePairs() {
+        // Act
+        feed("Transcoding 720p", "=oops", "", "out_time_us=1000000", "progress=continue");
+
+        // Assert
+        assertEquals(1, reports.size());
+        assertEquals(1.0, reports.get(0).outTimeSeconds(), 1e-9);
+    }
+
+    private void feed(String... lines) {
+        for (String line : lines) {
+            parser.accept(line);
+        }
+    }
+}